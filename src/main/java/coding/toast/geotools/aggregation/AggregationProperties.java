@@ -0,0 +1,64 @@
+package coding.toast.geotools.aggregation;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Layers aggregated at startup. Example (application.properties) :
+ * <pre>
+ * geotools.aggregation.layers.sample.params.url=file:src/test/resources/sample/sample.shp
+ * geotools.aggregation.layers.sample.grid-type=HEX
+ * geotools.aggregation.layers.sample.cell-sizes=100,500,2000
+ * geotools.aggregation.layers.sample.sum-attribute=id
+ * </pre>
+ * params are passed to DataStoreFinder.getDataStore as they are, so a PostGIS table works the same way
+ * (dbtype, host, port, database, schema, user, passwd + type-name).
+ */
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "geotools.aggregation")
+public class AggregationProperties {
+	
+	/**
+	 * layer name -> layer settings
+	 */
+	private Map<String, Layer> layers = new HashMap<>();
+	
+	@Getter
+	@Setter
+	public static class Layer {
+		
+		/**
+		 * DataStore connection parameters
+		 */
+		private Map<String, String> params = new HashMap<>();
+		
+		/**
+		 * typeName (=table name) to aggregate. the first typeName of the DataStore when empty (ShapeFile)
+		 */
+		private String typeName;
+		
+		private GridType gridType = GridType.SQUARE;
+		
+		/**
+		 * one resolution (=zoom level) per cell size, in CRS units
+		 */
+		private List<Double> cellSizes = List.of(100d, 1_000d, 10_000d);
+		
+		/**
+		 * numeric attribute to sum per cell, optional
+		 */
+		private String sumAttribute;
+		
+		/**
+		 * attribute which only grows for new rows (ex: serial id), optional.
+		 * when set, a refresh only reads rows with a bigger value than the last one seen.
+		 */
+		private String incrementalAttribute;
+	}
+}
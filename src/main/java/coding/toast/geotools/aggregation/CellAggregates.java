@@ -0,0 +1,108 @@
+package coding.toast.geotools.aggregation;
+
+import java.util.Arrays;
+
+/**
+ * count and sum per cell id, kept in primitive arrays. (open addressing, linear probing)<br>
+ * A HashMap&lt;Long, ...&gt; would need a Long and a value object per cell,
+ * this class needs 24 bytes per slot and nothing else.<br>
+ * Not thread-safe. LayerAggregation guards it with its read/write lock.
+ */
+class CellAggregates {
+	
+	/**
+	 * marks an unused slot. no cell id can be this value, it would need a column of Integer.MIN_VALUE.
+	 */
+	private static final long EMPTY = Long.MIN_VALUE;
+	
+	private long[] keys;
+	private long[] counts;
+	private double[] sums;
+	private int size;
+	
+	CellAggregates() {
+		allocate(64);
+	}
+	
+	void add(long cellId, double value) {
+		if (size * 2 >= keys.length) {
+			resize();
+		}
+		int slot = slot(cellId);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = cellId;
+			size++;
+		}
+		counts[slot]++;
+		sums[slot] += value;
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * @return count of the cell, 0 when there is no such cell
+	 */
+	long count(long cellId) {
+		int slot = slot(cellId);
+		return keys[slot] == EMPTY ? 0 : counts[slot];
+	}
+	
+	void forEach(CellConsumer consumer) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				consumer.accept(keys[i], counts[i], sums[i]);
+			}
+		}
+	}
+	
+	@FunctionalInterface
+	interface CellConsumer {
+		void accept(long cellId, long count, double sum);
+	}
+	
+	/**
+	 * @return slot holding the cell id, or the empty slot where it should be inserted
+	 */
+	private int slot(long cellId) {
+		int mask = keys.length - 1;
+		int slot = mix(cellId) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != cellId) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private void resize() {
+		long[] oldKeys = keys;
+		long[] oldCounts = counts;
+		double[] oldSums = sums;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+				sums[slot] = oldSums[i];
+				size++;
+			}
+		}
+	}
+	
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		counts = new long[capacity];
+		sums = new double[capacity];
+		size = 0;
+	}
+	
+	/**
+	 * neighbouring cells have neighbouring ids, so spread the bits before masking
+	 */
+	private static int mix(long cellId) {
+		long hash = cellId * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
@@ -0,0 +1,12 @@
+package coding.toast.geotools.aggregation;
+
+/**
+ * aggregated value of one cell, returned by the aggregation endpoint
+ * @param cellId  id of the cell (see GridType)
+ * @param x       cell center x
+ * @param y       cell center y
+ * @param count   number of features in the cell
+ * @param sum     sum of the aggregated attribute (0 when no attribute is configured)
+ */
+public record CellValue(long cellId, double x, double y, long count, double sum) {
+}
@@ -0,0 +1,65 @@
+package coding.toast.geotools.aggregation;
+
+import org.locationtech.jts.geom.Envelope;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serves the precomputed cells of {@link GridAggregationService}.
+ * <pre>
+ * GET  /aggregation                                          layer names
+ * GET  /aggregation/{layer}                                  grid type, cell sizes, feature count
+ * GET  /aggregation/{layer}/cells?level=0&amp;bbox=minX,minY,maxX,maxY
+ * POST /aggregation/{layer}/refresh                          add rows appended since the last scan
+ * </pre>
+ */
+@RestController
+@RequestMapping("/aggregation")
+public class GridAggregationController {
+	
+	private final GridAggregationService aggregationService;
+	
+	public GridAggregationController(GridAggregationService aggregationService) {
+		this.aggregationService = aggregationService;
+	}
+	
+	@GetMapping
+	public Set<String> layers() {
+		return aggregationService.getLayerNames();
+	}
+	
+	@GetMapping("/{layer}")
+	public Map<String, Object> describe(@PathVariable String layer) {
+		return aggregationService.describe(layer);
+	}
+	
+	@GetMapping("/{layer}/cells")
+	public List<CellValue> cells(@PathVariable String layer,
+	                             @RequestParam(defaultValue = "0") int level,
+	                             @RequestParam(required = false) List<Double> bbox) {
+		Envelope bounds = null;
+		if (bbox != null) {
+			if (bbox.size() != 4) {
+				throw new IllegalArgumentException("bbox must be minX,minY,maxX,maxY");
+			}
+			bounds = new Envelope(bbox.get(0), bbox.get(2), bbox.get(1), bbox.get(3));
+		}
+		return aggregationService.getCells(layer, level, bounds);
+	}
+	
+	@PostMapping("/{layer}/refresh")
+	public Map<String, Long> refresh(@PathVariable String layer) throws IOException {
+		return Map.of("added", aggregationService.refresh(layer));
+	}
+	
+	@ExceptionHandler({IllegalArgumentException.class, IllegalStateException.class})
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public Map<String, String> badRequest(RuntimeException e) {
+		return Map.of("message", e.getMessage());
+	}
+}
@@ -0,0 +1,224 @@
+package coding.toast.geotools.aggregation;
+
+import coding.toast.geotools.web.DataStoreAdmission;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.JDBCDataStoreFactory;
+import org.locationtech.jts.geom.Envelope;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <h2>Point density (count, sum) per square or hex cell, at several resolutions</h2>
+ * Each layer is scanned once when it is registered, then only new features are added to the cells.<br>
+ * (1) {@link #append(String, SimpleFeatureCollection)} adds features that the caller just wrote.<br>
+ * (2) {@link #refresh(String)} reads rows whose incrementalAttribute is bigger than the last one seen.<br>
+ * A layer uses one or the other : a layer with an incrementalAttribute only takes rows from its source through refresh,
+ * so appended features are never counted again and the last seen value only moves with what was read from the source.<br>
+ * Dashboards read the precomputed cells instead of running GROUP BY on the whole table for each request.<br>
+ * Every read of a source DataStore (the first scan and each refresh) goes through {@link DataStoreAdmission},
+ * so at most MAXCONN of them run at once on a PostGIS DataStore. Reading cells never touches the DataStore.
+ */
+@Service
+@EnableConfigurationProperties(AggregationProperties.class)
+public class GridAggregationService {
+	
+	private static final FilterFactory2 FILTER_FACTORY = CommonFactoryFinder.getFilterFactory2();
+	
+	private final AggregationProperties properties;
+	private final DataStoreAdmission admission;
+	private final Map<String, LayerAggregation> layers = new ConcurrentHashMap<>();
+	private final Map<String, SimpleFeatureSource> sources = new ConcurrentHashMap<>();
+	private final Map<String, DataStore> ownedDataStores = new ConcurrentHashMap<>();
+	
+	public GridAggregationService(AggregationProperties properties, DataStoreAdmission admission) {
+		this.properties = properties;
+		this.admission = admission;
+	}
+	
+	/**
+	 * aggregate the layers of application.properties
+	 */
+	@PostConstruct
+	void registerConfiguredLayers() throws IOException {
+		try {
+			for (Map.Entry<String, AggregationProperties.Layer> entry : properties.getLayers().entrySet()) {
+				registerConfiguredLayer(entry.getKey(), entry.getValue());
+			}
+		} catch (IOException | RuntimeException e) {
+			// @PreDestroy is not called when @PostConstruct fails, so the DataStores opened so far are disposed here
+			disposeDataStores();
+			throw e;
+		}
+	}
+	
+	private void registerConfiguredLayer(String layerName, AggregationProperties.Layer layer) throws IOException {
+		DataStore dataStore = DataStoreFinder.getDataStore(new HashMap<>(layer.getParams()));
+		if (dataStore == null) {
+			throw new IllegalStateException("No DataStore found for layer [" + layerName + "] params!");
+		}
+		ownedDataStores.put(layerName, dataStore);
+		if (dataStore instanceof JDBCDataStore) {
+			// one scan or refresh per pooled connection, the others wait (see DataStoreAdmission)
+			Integer maxConnections = (Integer) JDBCDataStoreFactory.MAXCONN.lookUp(new HashMap<>(layer.getParams()));
+			admission.register(dataStore, layerName,
+				maxConnections != null ? maxConnections : (Integer) JDBCDataStoreFactory.MAXCONN.getDefaultValue());
+		}
+		
+		String typeName = StringUtils.hasText(layer.getTypeName()) ? layer.getTypeName() : dataStore.getTypeNames()[0];
+		register(layerName, dataStore.getFeatureSource(typeName), layer.getGridType(),
+			layer.getCellSizes().stream().mapToDouble(Double::doubleValue).toArray(),
+			layer.getSumAttribute(), layer.getIncrementalAttribute());
+	}
+	
+	@PreDestroy
+	void disposeDataStores() {
+		ownedDataStores.values().forEach(dataStore -> {
+			admission.unregister(dataStore);
+			dataStore.dispose();
+		});
+		ownedDataStores.clear();
+	}
+	
+	/**
+	 * Aggregate every feature of the source. A layer with the same name is replaced.
+	 * @param layerName            name used by the endpoint
+	 * @param source               ShapeFile or PostGIS FeatureSource
+	 * @param gridType             square or hex cells
+	 * @param cellSizes            one resolution per cell size, in CRS units
+	 * @param sumAttribute         numeric attribute to sum, may be null
+	 * @param incrementalAttribute attribute that only grows for appended rows, may be null
+	 * @return number of aggregated features
+	 * @throws IOException occurs when reading the source fails
+	 */
+	public long register(String layerName, SimpleFeatureSource source, GridType gridType, double[] cellSizes,
+	                     String sumAttribute, String incrementalAttribute) throws IOException {
+		if (cellSizes.length == 0) {
+			throw new IllegalArgumentException("at least one cell size is required!");
+		}
+		LayerAggregation aggregation = new LayerAggregation(gridType, cellSizes, sumAttribute, incrementalAttribute);
+		Query query = propertiesQuery(source, aggregation);
+		long count = admission.call(source.getDataStore(), () -> {
+			try (SimpleFeatureIterator features = source.getFeatures(query).features()) {
+				return aggregation.addAll(features);
+			}
+		});
+		layers.put(layerName, aggregation);
+		sources.put(layerName, source);
+		return count;
+	}
+	
+	/**
+	 * Add features which were appended to the layer's source. Only their cells are updated.<br>
+	 * Not for layers with an incrementalAttribute : {@link #refresh(String)} reads the same rows from the source again.
+	 * @return number of added features
+	 */
+	public long append(String layerName, SimpleFeatureCollection appendedFeatures) {
+		LayerAggregation aggregation = getLayer(layerName);
+		if (aggregation.getIncrementalAttribute() != null) {
+			throw new IllegalStateException("Layer [" + layerName + "] has an incrementalAttribute, use refresh instead!");
+		}
+		try (SimpleFeatureIterator features = appendedFeatures.features()) {
+			return aggregation.addAll(features);
+		}
+	}
+	
+	/**
+	 * Read the rows appended since the last scan (incrementalAttribute &gt; last seen value) and add them.<br>
+	 * Refreshes of the same layer run one at a time, a concurrent one waits and only reads what is left.
+	 * @return number of added features
+	 * @throws IOException occurs when reading the source fails
+	 */
+	public long refresh(String layerName) throws IOException {
+		LayerAggregation aggregation = getLayer(layerName);
+		if (aggregation.getIncrementalAttribute() == null) {
+			throw new IllegalStateException("Layer [" + layerName + "] has no incrementalAttribute, use append instead!");
+		}
+		
+		SimpleFeatureSource source = sources.get(layerName);
+		aggregation.getRefreshLock().lock();
+		try {
+			Query query = propertiesQuery(source, aggregation);
+			Object lastValue = aggregation.getLastIncrementalValue();
+			if (lastValue != null) {
+				Filter appended = FILTER_FACTORY.greater(
+					FILTER_FACTORY.property(aggregation.getIncrementalAttribute()), FILTER_FACTORY.literal(lastValue));
+				query.setFilter(appended);
+			}
+			return admission.call(source.getDataStore(), () -> {
+				try (SimpleFeatureIterator features = source.getFeatures(query).features()) {
+					return aggregation.addAll(features);
+				}
+			});
+		} finally {
+			aggregation.getRefreshLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param level  resolution index (0 = first cell size)
+	 * @param bounds only cells whose center is inside, null for all cells
+	 */
+	public List<CellValue> getCells(String layerName, int level, Envelope bounds) {
+		return getLayer(layerName).cells(level, bounds);
+	}
+	
+	public Set<String> getLayerNames() {
+		return layers.keySet();
+	}
+	
+	/**
+	 * @return grid type, cell sizes and feature count of the layer
+	 */
+	public Map<String, Object> describe(String layerName) {
+		LayerAggregation aggregation = getLayer(layerName);
+		Map<String, Object> description = new HashMap<>();
+		description.put("gridType", aggregation.getGridType());
+		description.put("cellSizes", aggregation.getCellSizes());
+		description.put("featureCount", aggregation.getFeatureCount());
+		return description;
+	}
+	
+	private LayerAggregation getLayer(String layerName) {
+		LayerAggregation aggregation = layers.get(layerName);
+		if (aggregation == null) {
+			throw new IllegalArgumentException("No aggregated layer : " + layerName);
+		}
+		return aggregation;
+	}
+	
+	/**
+	 * read only the geometry and the attributes used for aggregation, not the whole row
+	 */
+	private static Query propertiesQuery(SimpleFeatureSource source, LayerAggregation aggregation) {
+		Query query = new Query(source.getSchema().getTypeName());
+		List<String> propertyNames = new ArrayList<>();
+		propertyNames.add(source.getSchema().getGeometryDescriptor().getLocalName());
+		for (String name : new String[]{aggregation.getSumAttribute(), aggregation.getIncrementalAttribute()}) {
+			if (name != null && !propertyNames.contains(name)) {
+				propertyNames.add(name);
+			}
+		}
+		query.setPropertyNames(propertyNames);
+		return query;
+	}
+}
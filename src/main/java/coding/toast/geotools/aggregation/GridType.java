@@ -0,0 +1,81 @@
+package coding.toast.geotools.aggregation;
+
+/**
+ * Cell layout of an aggregation grid.<br>
+ * A cell id packs two int cell coordinates into one long, (column or q) in the high 32 bits and (row or r) in the low 32 bits.
+ */
+public enum GridType {
+	
+	/**
+	 * square cells, cellSize is the side length
+	 */
+	SQUARE {
+		@Override
+		public long cellId(double x, double y, double cellSize) {
+			return pack((int) Math.floor(x / cellSize), (int) Math.floor(y / cellSize));
+		}
+		
+		@Override
+		public double[] center(long cellId, double cellSize) {
+			return new double[]{(high(cellId) + 0.5) * cellSize, (low(cellId) + 0.5) * cellSize};
+		}
+	},
+	
+	/**
+	 * pointy-top hexagons in axial coordinates (q, r), cellSize is the distance from the center to a vertex
+	 * @see <a href="https://www.redblobgames.com/grids/hexagons/">Hexagonal Grids</a>
+	 */
+	HEX {
+		@Override
+		public long cellId(double x, double y, double cellSize) {
+			double q = (SQRT_3 / 3 * x - y / 3) / cellSize;
+			double r = (2.0 / 3 * y) / cellSize;
+			
+			// round the cube coordinate (q, r, s) to the nearest hexagon
+			double s = -q - r;
+			long roundQ = Math.round(q);
+			long roundR = Math.round(r);
+			long roundS = Math.round(s);
+			double diffQ = Math.abs(roundQ - q);
+			double diffR = Math.abs(roundR - r);
+			double diffS = Math.abs(roundS - s);
+			if (diffQ > diffR && diffQ > diffS) {
+				roundQ = -roundR - roundS;
+			} else if (diffR > diffS) {
+				roundR = -roundQ - roundS;
+			}
+			return pack((int) roundQ, (int) roundR);
+		}
+		
+		@Override
+		public double[] center(long cellId, double cellSize) {
+			int q = high(cellId);
+			int r = low(cellId);
+			return new double[]{cellSize * (SQRT_3 * q + SQRT_3 / 2 * r), cellSize * (1.5 * r)};
+		}
+	};
+	
+	private static final double SQRT_3 = Math.sqrt(3);
+	
+	/**
+	 * @return id of the cell containing (x, y)
+	 */
+	public abstract long cellId(double x, double y, double cellSize);
+	
+	/**
+	 * @return [x, y] of the cell center
+	 */
+	public abstract double[] center(long cellId, double cellSize);
+	
+	static long pack(int high, int low) {
+		return ((long) high << 32) | (low & 0xFFFFFFFFL);
+	}
+	
+	static int high(long cellId) {
+		return (int) (cellId >> 32);
+	}
+	
+	static int low(long cellId) {
+		return (int) cellId;
+	}
+}
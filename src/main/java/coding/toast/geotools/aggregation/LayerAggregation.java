@@ -0,0 +1,148 @@
+package coding.toast.geotools.aggregation;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Aggregates of one layer at every resolution.<br>
+ * Adding features only touches the cells they fall into, so appending is as cheap as the new features.
+ */
+class LayerAggregation {
+	
+	private final GridType gridType;
+	private final double[] cellSizes;
+	private final CellAggregates[] levels;
+	private final String sumAttribute;
+	private final String incrementalAttribute;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * held from reading the last incremental value until the rows after it are added.
+	 * Otherwise two refreshes read the same value and add the same rows twice.
+	 */
+	private final Lock refreshLock = new ReentrantLock();
+	
+	private long featureCount;
+	
+	/**
+	 * biggest incrementalAttribute value read from the source. Only the first scan and refreshes add features
+	 * to a layer with an incrementalAttribute, so it never gets ahead of the rows in the source.
+	 */
+	private Comparable<Object> lastIncrementalValue;
+	
+	LayerAggregation(GridType gridType, double[] cellSizes, String sumAttribute, String incrementalAttribute) {
+		this.gridType = gridType;
+		this.cellSizes = cellSizes.clone();
+		this.sumAttribute = sumAttribute;
+		this.incrementalAttribute = incrementalAttribute;
+		this.levels = new CellAggregates[cellSizes.length];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = new CellAggregates();
+		}
+	}
+	
+	/**
+	 * add every feature of the iterator to the cells of all resolutions
+	 * @return number of added features
+	 */
+	@SuppressWarnings("unchecked")
+	long addAll(SimpleFeatureIterator features) {
+		long added = 0;
+		lock.writeLock().lock();
+		try {
+			while (features.hasNext()) {
+				SimpleFeature feature = features.next();
+				Geometry geometry = (Geometry) feature.getDefaultGeometry();
+				if (geometry == null || geometry.isEmpty()) {
+					continue;
+				}
+				
+				// points are aggregated as they are, other geometries by their centroid
+				Point point = geometry instanceof Point p ? p : geometry.getCentroid();
+				double value = sumAttribute != null && feature.getAttribute(sumAttribute) instanceof Number number
+					? number.doubleValue() : 0d;
+				for (int level = 0; level < levels.length; level++) {
+					levels[level].add(gridType.cellId(point.getX(), point.getY(), cellSizes[level]), value);
+				}
+				
+				if (incrementalAttribute != null && feature.getAttribute(incrementalAttribute) instanceof Comparable<?> key
+					&& (lastIncrementalValue == null || lastIncrementalValue.compareTo(key) < 0)) {
+					lastIncrementalValue = (Comparable<Object>) key;
+				}
+				added++;
+			}
+			featureCount += added;
+			return added;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param level  resolution index (0 = first cell size)
+	 * @param bounds only cells whose center is inside, null for all cells
+	 */
+	List<CellValue> cells(int level, Envelope bounds) {
+		if (level < 0 || level >= levels.length) {
+			throw new IllegalArgumentException("level must be between 0 and " + (levels.length - 1) + " : " + level);
+		}
+		double cellSize = cellSizes[level];
+		lock.readLock().lock();
+		try {
+			List<CellValue> cells = new ArrayList<>(levels[level].size());
+			levels[level].forEach((cellId, count, sum) -> {
+				double[] center = gridType.center(cellId, cellSize);
+				if (bounds == null || bounds.contains(center[0], center[1])) {
+					cells.add(new CellValue(cellId, center[0], center[1], count, sum));
+				}
+			});
+			return cells;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	GridType getGridType() {
+		return gridType;
+	}
+	
+	double[] getCellSizes() {
+		return cellSizes.clone();
+	}
+	
+	String getIncrementalAttribute() {
+		return incrementalAttribute;
+	}
+	
+	Object getLastIncrementalValue() {
+		lock.readLock().lock();
+		try {
+			return lastIncrementalValue;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	Lock getRefreshLock() {
+		return refreshLock;
+	}
+	
+	long getFeatureCount() {
+		lock.readLock().lock();
+		try {
+			return featureCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package coding.toast.geotools.web;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <pre>
+ * GET /admission     request execution mode and admission stats of every registered DataStore
+ * </pre>
+ */
+@RestController
+public class AdmissionController {
+	
+	private final DataStoreAdmission admission;
+	
+	public AdmissionController(DataStoreAdmission admission) {
+		this.admission = admission;
+	}
+	
+	@GetMapping("/admission")
+	public Map<String, Object> admission() {
+		List<DataStoreAdmission.Stats> stats = admission.getStats();
+		return Map.of(
+			"thread", Thread.currentThread().toString(),
+			"dataStores", stats);
+	}
+}
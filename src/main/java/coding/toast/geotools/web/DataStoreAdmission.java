@@ -0,0 +1,141 @@
+package coding.toast.geotools.web;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h2>Limits concurrent calls per DataStore to its connection pool size</h2>
+ * With virtual threads there is no thread pool limiting requests anymore, so without this
+ * every request would wait inside the JDBC connection pool (and fail after its MAXWAIT).<br>
+ * (1) a DataStore is registered with the number of calls it can serve at once (= JDBCDataStoreFactory.MAXCONN).<br>
+ * (2) other calls wait in a fair queue for at most geotools.web.admission-timeout, then {@link DataStoreBusyException} (503).<br>
+ * (3) queue depth and wait time are kept per DataStore, see {@link #getStats()} and GET /admission.<br>
+ * Calls on DataStores which are not registered (ex: ShapeFiles) are not limited.
+ */
+@Component
+public class DataStoreAdmission {
+	
+	/**
+	 * a DataStore call, which may block on JDBC
+	 */
+	@FunctionalInterface
+	public interface DataStoreCall<T> {
+		T call() throws IOException;
+	}
+	
+	/**
+	 * @param name              DataStore name
+	 * @param permits           calls allowed at once
+	 * @param inUse             calls running now
+	 * @param waiting           calls waiting now (queue depth)
+	 * @param admitted          calls admitted so far
+	 * @param rejected          calls rejected after the timeout
+	 * @param averageWaitMillis average wait of the admitted calls
+	 * @param maxWaitMillis     longest wait of the admitted calls
+	 */
+	public record Stats(String name, int permits, int inUse, int waiting, long admitted, long rejected,
+	                    double averageWaitMillis, double maxWaitMillis) {
+	}
+	
+	private final WebExecutionProperties properties;
+	private final Map<Object, Gate> gates = new ConcurrentHashMap<>();
+	
+	public DataStoreAdmission(WebExecutionProperties properties) {
+		this.properties = properties;
+	}
+	
+	/**
+	 * @param dataStore DataStore (or any shared resource) to limit
+	 * @param name      name shown in the stats
+	 * @param permits   calls allowed at once, usually the connection pool size
+	 */
+	public void register(Object dataStore, String name, int permits) {
+		if (permits < 1) {
+			throw new IllegalArgumentException("permits must be positive : " + permits);
+		}
+		gates.put(dataStore, new Gate(name, permits));
+	}
+	
+	public void unregister(Object dataStore) {
+		gates.remove(dataStore);
+	}
+	
+	/**
+	 * Run the call when the DataStore has a free slot.
+	 * @throws DataStoreBusyException when no slot was free within the admission timeout
+	 * @throws IOException            thrown by the call, or when the waiting thread is interrupted
+	 */
+	public <T> T call(Object dataStore, DataStoreCall<T> call) throws IOException {
+		Gate gate = gates.get(dataStore);
+		if (gate == null) {
+			return call.call();
+		}
+		
+		gate.waiting.incrementAndGet();
+		long start = System.nanoTime();
+		boolean admitted;
+		try {
+			admitted = gate.semaphore.tryAcquire(properties.getAdmissionTimeout().toNanos(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for DataStore [" + gate.name + "]");
+		} finally {
+			gate.waiting.decrementAndGet();
+		}
+		long waitNanos = System.nanoTime() - start;
+		
+		if (!admitted) {
+			gate.rejected.increment();
+			throw new DataStoreBusyException(gate.name, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+		}
+		gate.admitted.increment();
+		gate.waitNanos.add(waitNanos);
+		gate.maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+		try {
+			return call.call();
+		} finally {
+			gate.semaphore.release();
+		}
+	}
+	
+	public List<Stats> getStats() {
+		List<Stats> stats = new ArrayList<>();
+		for (Gate gate : gates.values()) {
+			long admitted = gate.admitted.sum();
+			stats.add(new Stats(gate.name, gate.permits, gate.permits - gate.semaphore.availablePermits(),
+				gate.waiting.get(), admitted, gate.rejected.sum(),
+				admitted == 0 ? 0 : gate.waitNanos.sum() / 1e6 / admitted, gate.maxWaitNanos.get() / 1e6));
+		}
+		return stats;
+	}
+	
+	private static class Gate {
+		
+		private final String name;
+		private final int permits;
+		// fair : the longest waiting request goes first
+		private final Semaphore semaphore;
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final LongAdder admitted = new LongAdder();
+		private final LongAdder rejected = new LongAdder();
+		private final LongAdder waitNanos = new LongAdder();
+		private final AtomicLong maxWaitNanos = new AtomicLong();
+		
+		Gate(String name, int permits) {
+			this.name = name;
+			this.permits = permits;
+			this.semaphore = new Semaphore(permits, true);
+		}
+	}
+}
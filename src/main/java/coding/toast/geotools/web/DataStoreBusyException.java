@@ -0,0 +1,15 @@
+package coding.toast.geotools.web;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when a request waited longer than geotools.web.admission-timeout for a DataStore connection slot.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class DataStoreBusyException extends RuntimeException {
+	
+	public DataStoreBusyException(String dataStoreName, long waitedMillis) {
+		super("DataStore [" + dataStoreName + "] is busy, waited " + waitedMillis + " ms");
+	}
+}
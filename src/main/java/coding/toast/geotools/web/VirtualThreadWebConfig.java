@@ -0,0 +1,36 @@
+package coding.toast.geotools.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Replaces the Tomcat request thread pool (200 platform threads by default) with one virtual thread per request.<br>
+ * A request blocked on JDBC then only parks its virtual thread, so slow queries don't starve the other requests.
+ * The number of concurrent DataStore calls is still limited by {@link DataStoreAdmission}.<br>
+ * Enabled with geotools.web.virtual-threads=true. On Java 17 the default thread pool is kept and a warning is logged.
+ */
+@Slf4j
+@Configuration
+@EnableConfigurationProperties(WebExecutionProperties.class)
+public class VirtualThreadWebConfig {
+	
+	@Bean
+	@ConditionalOnProperty(prefix = "geotools.web", name = "virtual-threads", havingValue = "true")
+	public TomcatProtocolHandlerCustomizer<?> virtualThreadExecutorCustomizer() {
+		Optional<ExecutorService> executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+		if (executor.isEmpty()) {
+			log.warn("geotools.web.virtual-threads needs Java 21+ (running on Java {}), the default Tomcat thread pool is used",
+				Runtime.version().feature());
+			return protocolHandler -> {};
+		}
+		log.info("Tomcat requests run on virtual threads");
+		return protocolHandler -> protocolHandler.setExecutor(executor.get());
+	}
+}
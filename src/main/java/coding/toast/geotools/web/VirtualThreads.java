@@ -0,0 +1,47 @@
+package coding.toast.geotools.web;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads without compiling against Java 21.<br>
+ * The project is built for Java 17, so Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection.
+ */
+public final class VirtualThreads {
+	
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactoryMethod();
+	
+	private VirtualThreads() {
+	}
+	
+	/**
+	 * @return true on Java 21+
+	 */
+	public static boolean isAvailable() {
+		return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+	}
+	
+	/**
+	 * @return an executor starting one virtual thread per task, empty before Java 21
+	 */
+	public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor() {
+		if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+			return Optional.empty();
+		}
+		try {
+			return Optional.of((ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null));
+		} catch (ReflectiveOperationException e) {
+			return Optional.empty();
+		}
+	}
+	
+	private static Method findFactoryMethod() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
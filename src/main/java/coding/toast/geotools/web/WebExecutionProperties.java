@@ -0,0 +1,30 @@
+package coding.toast.geotools.web;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Request execution settings. Example (application.properties) :
+ * <pre>
+ * geotools.web.virtual-threads=true
+ * geotools.web.admission-timeout=3s
+ * </pre>
+ */
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "geotools.web")
+public class WebExecutionProperties {
+	
+	/**
+	 * run every request on its own virtual thread instead of the Tomcat thread pool. (Java 21+, ignored on Java 17)
+	 */
+	private boolean virtualThreads = false;
+	
+	/**
+	 * how long a request waits for a DataStore connection slot before it gets 503
+	 */
+	private Duration admissionTimeout = Duration.ofSeconds(5);
+}
@@ -0,0 +1,204 @@
+package coding.toast.geotools.aggregation;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import coding.toast.geotools.web.DataStoreAdmission;
+import coding.toast.geotools.web.WebExecutionProperties;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Test for {@link GridAggregationService}. The service is created without Spring, no layer is configured.
+ */
+public class GridAggregationServiceTest {
+	
+	@Test
+	@DisplayName("Appending features gives the same cells as aggregating everything again")
+	void incrementalAppendTest() throws IOException {
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		try {
+			SimpleFeatureSource source = shapeFileDataStore.getFeatureSource();
+			List<SimpleFeature> features = new ArrayList<>();
+			try (SimpleFeatureIterator iterator = source.getFeatures().features()) {
+				while (iterator.hasNext()) {
+					features.add(iterator.next());
+				}
+			}
+			
+			// first half : initial scan, second half : appended later
+			int half = features.size() / 2;
+			SimpleFeatureSource firstHalf = DataUtilities.source(
+				new ListFeatureCollection(source.getSchema(), features.subList(0, half)));
+			ListFeatureCollection secondHalf = new ListFeatureCollection(source.getSchema(), features.subList(half, features.size()));
+			
+			for (GridType gridType : GridType.values()) {
+				double[] cellSizes = {100, 1_000, 10_000}; // metre (EPSG:5186)
+				
+				GridAggregationService service = new GridAggregationService(new AggregationProperties(),
+					new DataStoreAdmission(new WebExecutionProperties()));
+				service.register("full", source, gridType, cellSizes, "id", null);
+				service.register("incremental", firstHalf, gridType, cellSizes, "id", null);
+				service.append("incremental", secondHalf);
+				
+				for (int level = 0; level < cellSizes.length; level++) {
+					List<CellValue> full = sorted(service.getCells("full", level, null));
+					List<CellValue> incremental = sorted(service.getCells("incremental", level, null));
+					System.out.println(gridType + " level " + level + " : " + full);
+					assertEquals(full, incremental);
+				}
+				assertEquals((long) features.size(), service.describe("incremental").get("featureCount"));
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+	}
+	
+	@Test
+	@DisplayName("Concurrent refreshes add the appended rows only once")
+	void concurrentRefreshTest() throws Exception {
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		try {
+			SimpleFeatureSource source = shapeFileDataStore.getFeatureSource();
+			List<SimpleFeature> features = new ArrayList<>();
+			try (SimpleFeatureIterator iterator = source.getFeatures().features()) {
+				while (iterator.hasNext()) {
+					features.add(iterator.next());
+				}
+			}
+			
+			// rows up to the middle id are there from the start, the others are appended later
+			features.sort(Comparator.comparingLong(feature -> ((Number) feature.getAttribute("id")).longValue()));
+			long middleId = ((Number) features.get(features.size() / 2).getAttribute("id")).longValue();
+			List<SimpleFeature> initialRows = features.stream()
+				.filter(feature -> ((Number) feature.getAttribute("id")).longValue() <= middleId).toList();
+			List<SimpleFeature> appendedRows = features.subList(initialRows.size(), features.size());
+			
+			MemoryDataStore table = new MemoryDataStore(source.getSchema());
+			table.addFeatures(initialRows);
+			
+			double[] cellSizes = {100, 1_000, 10_000}; // metre (EPSG:5186)
+			DataStoreAdmission admission = new DataStoreAdmission(new WebExecutionProperties());
+			// stands for a PostGIS table with 2 pooled connections
+			admission.register(table, "table", 2);
+			GridAggregationService service = new GridAggregationService(new AggregationProperties(), admission);
+			service.register("full", source, GridType.SQUARE, cellSizes, "id", null);
+			service.register("refreshed", table.getFeatureSource(source.getSchema().getTypeName()),
+				GridType.SQUARE, cellSizes, "id", "id");
+			
+			table.addFeatures(appendedRows);
+			
+			// every thread reads the same last id at the same time, unless refreshes are serialized
+			int threads = 8;
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Long>> results = new ArrayList<>();
+			try {
+				for (int i = 0; i < threads; i++) {
+					results.add(executor.submit(() -> {
+						start.await();
+						return service.refresh("refreshed");
+					}));
+				}
+				start.countDown();
+				long added = 0;
+				for (Future<Long> result : results) {
+					added += result.get();
+				}
+				assertEquals(appendedRows.size(), added);
+			} finally {
+				executor.shutdownNow();
+			}
+			
+			for (int level = 0; level < cellSizes.length; level++) {
+				assertEquals(sorted(service.getCells("full", level, null)), sorted(service.getCells("refreshed", level, null)));
+			}
+			assertEquals((long) features.size(), service.describe("refreshed").get("featureCount"));
+			// the first scan and every refresh were admitted
+			DataStoreAdmission.Stats tableStats = admission.getStats().get(0);
+			System.out.println(tableStats);
+			assertEquals(1 + threads, tableStats.admitted());
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+	}
+	
+	@Test
+	@DisplayName("A layer with an incrementalAttribute rejects append, a later refresh still reads every new row")
+	void appendThenRefreshTest() throws IOException {
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		try {
+			SimpleFeatureSource source = shapeFileDataStore.getFeatureSource();
+			List<SimpleFeature> features = new ArrayList<>();
+			try (SimpleFeatureIterator iterator = source.getFeatures().features()) {
+				while (iterator.hasNext()) {
+					features.add(iterator.next());
+				}
+			}
+			
+			// rows up to the middle id are there from the start, the others are inserted later
+			features.sort(Comparator.comparingLong(feature -> ((Number) feature.getAttribute("id")).longValue()));
+			long middleId = ((Number) features.get(features.size() / 2).getAttribute("id")).longValue();
+			List<SimpleFeature> initialRows = features.stream()
+				.filter(feature -> ((Number) feature.getAttribute("id")).longValue() <= middleId).toList();
+			List<SimpleFeature> laterRows = features.subList(initialRows.size(), features.size());
+			
+			MemoryDataStore table = new MemoryDataStore(source.getSchema());
+			table.addFeatures(initialRows);
+			
+			double[] cellSizes = {100, 1_000, 10_000}; // metre (EPSG:5186)
+			GridAggregationService service = new GridAggregationService(new AggregationProperties(),
+				new DataStoreAdmission(new WebExecutionProperties()));
+			service.register("full", source, GridType.SQUARE, cellSizes, "id", null);
+			service.register("refreshed", table.getFeatureSource(source.getSchema().getTypeName()),
+				GridType.SQUARE, cellSizes, "id", "id");
+			
+			// the rows would be counted again by refresh, and the last seen id would skip rows of other writers
+			ListFeatureCollection appended = new ListFeatureCollection(source.getSchema(), laterRows);
+			assertThrows(IllegalStateException.class, () -> service.append("refreshed", appended));
+			assertEquals((long) initialRows.size(), service.describe("refreshed").get("featureCount"));
+			
+			table.addFeatures(laterRows);
+			assertEquals(laterRows.size(), service.refresh("refreshed"));
+			
+			for (int level = 0; level < cellSizes.length; level++) {
+				assertEquals(sorted(service.getCells("full", level, null)), sorted(service.getCells("refreshed", level, null)));
+			}
+			assertEquals((long) features.size(), service.describe("refreshed").get("featureCount"));
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+	}
+	
+	private static List<CellValue> sorted(List<CellValue> cells) {
+		cells.sort(Comparator.comparingLong(CellValue::cellId));
+		return cells;
+	}
+}
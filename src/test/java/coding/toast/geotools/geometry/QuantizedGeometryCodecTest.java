@@ -0,0 +1,160 @@
+package coding.toast.geotools.geometry;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.QuantizedGeometryCodec;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test for {@link QuantizedGeometryCodec}. Compares size and speed with WKB.
+ */
+public class QuantizedGeometryCodecTest {
+	
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(new PrecisionModel(), 5186);
+	
+	@Test
+	@DisplayName("Encode and decode the sample ShapeFile geometries")
+	void sampleShapeFileRoundTripTest() throws IOException {
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		// millimetre precision for EPSG:5186 (metre unit)
+		QuantizedGeometryCodec codec = new QuantizedGeometryCodec(5186, 3);
+		
+		try (SimpleFeatureIterator features = shapeFileDataStore.getFeatureSource().getFeatures().features()) {
+			while (features.hasNext()) {
+				Geometry geometry = (Geometry) features.next().getDefaultGeometry();
+				byte[] encoded = codec.encode(geometry);
+				Geometry decoded = codec.decode(encoded);
+				
+				System.out.println(geometry + " => " + encoded.length + " bytes (WKB : "
+					+ new WKBWriter().write(geometry).length + " bytes) => " + decoded);
+				assertTrue(geometry.equalsExact(decoded, 0.0005));
+				assertEquals(5186, decoded.getSRID());
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+	}
+	
+	@Test
+	@DisplayName("Ordinates too big for the decimal digits are refused")
+	void quantizeLimitTest() {
+		// 15 decimal digits : |ordinate| * 10^15 must stay below 2^62 (about 4.6e18)
+		QuantizedGeometryCodec codec = new QuantizedGeometryCodec(4326, 15);
+		
+		Geometry nearLimit = GEOMETRY_FACTORY.createPoint(new Coordinate(4_000, -4_000));
+		assertTrue(nearLimit.equalsExact(codec.decode(codec.encode(nearLimit))));
+		
+		Geometry overLimit = GEOMETRY_FACTORY.createPoint(new Coordinate(5_000, 0));
+		assertThrows(IllegalArgumentException.class, () -> codec.encode(overLimit));
+		
+		Geometry notANumber = GEOMETRY_FACTORY.createPoint(new Coordinate(Double.NaN, 0));
+		assertThrows(IllegalArgumentException.class, () -> codec.encode(notANumber));
+		
+		// the same coordinates are fine with a usual precision (EPSG:5186 metre, millimetre)
+		QuantizedGeometryCodec millimetreCodec = new QuantizedGeometryCodec(5186, 3);
+		assertTrue(overLimit.equalsExact(millimetreCodec.decode(millimetreCodec.encode(overLimit))));
+	}
+	
+	@Test
+	@DisplayName("Size and throughput compared with WKB")
+	void compareWithWkbBenchmark() throws ParseException {
+		List<Geometry> points = new ArrayList<>();
+		List<Geometry> lines = new ArrayList<>();
+		SplittableRandom random = new SplittableRandom(5186);
+		for (int i = 0; i < 100_000; i++) {
+			points.add(GEOMETRY_FACTORY.createPoint(randomCoordinate(random)));
+		}
+		for (int i = 0; i < 10_000; i++) {
+			// dense line : 100 vertices, about 1~2m apart
+			Coordinate[] coordinates = new Coordinate[100];
+			coordinates[0] = randomCoordinate(random);
+			for (int j = 1; j < coordinates.length; j++) {
+				coordinates[j] = new Coordinate(
+					coordinates[j - 1].x + random.nextDouble(-2, 2),
+					coordinates[j - 1].y + random.nextDouble(-2, 2));
+			}
+			lines.add(GEOMETRY_FACTORY.createLineString(coordinates));
+		}
+		
+		QuantizedGeometryCodec codec = new QuantizedGeometryCodec(5186, 3);
+		benchmark("Point", points, codec);
+		benchmark("LineString", lines, codec);
+	}
+	
+	private static void benchmark(String label, List<Geometry> geometries, QuantizedGeometryCodec codec) throws ParseException {
+		WKBWriter wkbWriter = new WKBWriter();
+		WKBReader wkbReader = new WKBReader(GEOMETRY_FACTORY);
+		
+		// warm up both codecs before measuring
+		for (int i = 0; i < 3; i++) {
+			for (Geometry geometry : geometries) {
+				codec.decode(codec.encode(geometry));
+				wkbReader.read(wkbWriter.write(geometry));
+			}
+		}
+		
+		List<byte[]> quantized = new ArrayList<>(geometries.size());
+		long start = System.nanoTime();
+		for (Geometry geometry : geometries) {
+			quantized.add(codec.encode(geometry));
+		}
+		long quantizedEncodeNanos = System.nanoTime() - start;
+		
+		List<byte[]> wkb = new ArrayList<>(geometries.size());
+		start = System.nanoTime();
+		for (Geometry geometry : geometries) {
+			wkb.add(wkbWriter.write(geometry));
+		}
+		long wkbEncodeNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (byte[] bytes : quantized) {
+			codec.decode(bytes);
+		}
+		long quantizedDecodeNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (byte[] bytes : wkb) {
+			wkbReader.read(bytes);
+		}
+		long wkbDecodeNanos = System.nanoTime() - start;
+		
+		long quantizedBytes = quantized.stream().mapToLong(bytes -> bytes.length).sum();
+		long wkbBytes = wkb.stream().mapToLong(bytes -> bytes.length).sum();
+		
+		System.out.println("\n===== " + label + " x " + geometries.size() + " =====");
+		System.out.println("size   : quantized " + quantizedBytes + " bytes, WKB " + wkbBytes + " bytes ("
+			+ "%.1f%%".formatted(quantizedBytes * 100.0 / wkbBytes) + ")");
+		System.out.println("encode : quantized " + quantizedEncodeNanos / 1_000_000 + " ms, WKB " + wkbEncodeNanos / 1_000_000 + " ms");
+		System.out.println("decode : quantized " + quantizedDecodeNanos / 1_000_000 + " ms, WKB " + wkbDecodeNanos / 1_000_000 + " ms");
+		
+		assertTrue(quantizedBytes < wkbBytes);
+	}
+	
+	private static Coordinate randomCoordinate(SplittableRandom random) {
+		// somewhere around Seoul in EPSG:5186
+		return new Coordinate(random.nextDouble(180_000, 220_000), random.nextDouble(530_000, 570_000));
+	}
+}
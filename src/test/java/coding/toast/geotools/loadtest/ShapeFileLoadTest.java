@@ -0,0 +1,192 @@
+package coding.toast.geotools.loadtest;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.LoadTestUtil;
+import coding.toast.geotools.utils.PostGisUtil;
+import coding.toast.geotools.utils.ShapeFileImportUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import coding.toast.geotools.utils.SyntheticShapeFileUtil;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.SchemaException;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * End-to-end load test of the read, metadata, create table and append flows, with generated ShapeFiles.<br>
+ * The feature count can be changed with -DloadTest.features=5000000 (the generated files are deleted afterwards).<br>
+ * The PostgreSQL stages run against a disposable PostGIS container (Testcontainers), never against the localhost database
+ * of the other PostGIS tests. Without Docker, the ShapeFile stages are still reported, then the test is marked as skipped.
+ */
+public class ShapeFileLoadTest {
+	
+	private static final long FEATURE_COUNT = Long.getLong("loadTest.features", 100_000);
+	
+	private static final int METADATA_REPEAT = 50;
+	
+	private static final int BATCH_SIZE = 5_000;
+	
+	private static final DockerImageName POSTGIS_IMAGE = DockerImageName.parse("postgis/postgis:14-3.3-alpine")
+		.asCompatibleSubstituteFor("postgres");
+	
+	@Test
+	void loadTest() throws IOException, FactoryException, SchemaException {
+		CoordinateReferenceSystem crs = CRS.decode("EPSG:5186");
+		Charset eucKr = Charset.forName("EUC-KR");
+		
+		List<SyntheticShapeFileUtil.Spec> specs = List.of(
+			new SyntheticShapeFileUtil.Spec(Point.class, FEATURE_COUNT, 0, 3, 50, crs, StandardCharsets.UTF_8, 5186),
+			new SyntheticShapeFileUtil.Spec(LineString.class, FEATURE_COUNT, 32, 3, 50, crs, eucKr, 5186),
+			new SyntheticShapeFileUtil.Spec(Polygon.class, FEATURE_COUNT, 16, 5, 100, crs, eucKr, 5186)
+		);
+		
+		boolean dockerAvailable = DockerClientFactory.instance().isDockerAvailable();
+		PostgreSQLContainer<?> postGisContainer = dockerAvailable ? new PostgreSQLContainer<>(POSTGIS_IMAGE) : null;
+		JDBCDataStore postGisDataStore = null;
+		Path workDirectory = Files.createTempDirectory("shapefile_load_test");
+		List<LoadTestUtil.StageResult> results = new ArrayList<>();
+		
+		try {
+			if (postGisContainer != null) {
+				postGisContainer.start();
+				postGisDataStore = connectPostGis(postGisContainer);
+			}
+			
+			for (SyntheticShapeFileUtil.Spec spec : specs) {
+				String name = spec.geometryType().getSimpleName().toLowerCase() + "_" + spec.encoding().name().replace("-", "").toLowerCase();
+				Path shapeFilePath = workDirectory.resolve(name + ".shp");
+				
+				// (1) generate
+				LoadTestUtil.Stage generate = LoadTestUtil.start(name + " generate");
+				long start = System.nanoTime();
+				SyntheticShapeFileUtil.generate(shapeFilePath, spec);
+				generate.record(System.nanoTime() - start, spec.featureCount());
+				results.add(generate.finish());
+				
+				// (2) read every feature, one latency sample per feature
+				LoadTestUtil.Stage read = LoadTestUtil.start(name + " read");
+				ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(shapeFilePath.toString(), null);
+				try (SimpleFeatureIterator features = shapeFileDataStore.getFeatureSource().getFeatures().features()) {
+					while (true) {
+						start = System.nanoTime();
+						if (!features.hasNext()) {
+							break;
+						}
+						features.next();
+						read.record(System.nanoTime() - start, 1);
+					}
+				} finally {
+					DataStoreUtil.closeDataStores(shapeFileDataStore);
+				}
+				LoadTestUtil.StageResult readResult = read.finish();
+				results.add(readResult);
+				assertEquals(spec.featureCount(), readResult.operations());
+				
+				// (3) metadata, like ShapeFileMetaDataReadTests (open, encoding, schema, EPSG code, bounds, count)
+				LoadTestUtil.Stage metadata = LoadTestUtil.start(name + " metadata");
+				for (int i = 0; i < METADATA_REPEAT; i++) {
+					start = System.nanoTime();
+					shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(shapeFilePath.toString(), null);
+					try {
+						SimpleFeatureType schema = shapeFileDataStore.getSchema();
+						CRS.lookupEpsgCode(schema.getCoordinateReferenceSystem(), false);
+						shapeFileDataStore.getFeatureSource().getBounds();
+						shapeFileDataStore.getFeatureSource().getCount(Query.ALL);
+					} finally {
+						DataStoreUtil.closeDataStores(shapeFileDataStore);
+					}
+					metadata.record(System.nanoTime() - start, 1);
+				}
+				results.add(metadata.finish());
+				
+				if (postGisDataStore == null) {
+					continue;
+				}
+				
+				shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(shapeFilePath.toString(), null);
+				try {
+					// (4) create table, like CreateTableViaShapeFileTest
+					String tableName = "load_test_" + name;
+					LoadTestUtil.Stage createTable = LoadTestUtil.start(name + " create table");
+					start = System.nanoTime();
+					if (Arrays.asList(postGisDataStore.getTypeNames()).contains(tableName)) {
+						postGisDataStore.removeSchema(tableName);
+					}
+					SimpleFeatureType shapeFileSchema = shapeFileDataStore.getSchema();
+					SimpleFeatureType tableSchema = DataUtilities.createType(tableName,
+						PostGisUtil.getTypeSpecForPostGIS(shapeFileSchema));
+					tableSchema = DataUtilities.createSubType(tableSchema, null, shapeFileSchema.getCoordinateReferenceSystem());
+					postGisDataStore.createSchema(tableSchema);
+					createTable.record(System.nanoTime() - start, 1);
+					results.add(createTable.finish());
+					
+					// (5) append, one latency sample per committed batch
+					LoadTestUtil.Stage append = LoadTestUtil.start(name + " append");
+					ShapeFileImportUtil.importFeatures(shapeFileDataStore.getFeatureSource(), postGisDataStore, tableName,
+						BATCH_SIZE, (featureCount, elapsedNanos) -> append.record(elapsedNanos, featureCount));
+					LoadTestUtil.StageResult appendResult = append.finish();
+					results.add(appendResult);
+					assertEquals(spec.featureCount(), appendResult.operations());
+				} finally {
+					DataStoreUtil.closeDataStores(shapeFileDataStore);
+				}
+			}
+		} finally {
+			if (postGisDataStore != null) {
+				DataStoreUtil.closeDataStores(postGisDataStore);
+			}
+			if (postGisContainer != null) {
+				postGisContainer.stop();
+			}
+			try (var files = Files.list(workDirectory)) {
+				for (Path file : files.toList()) {
+					Files.deleteIfExists(file);
+				}
+			}
+			Files.deleteIfExists(workDirectory);
+		}
+		
+		LoadTestUtil.printReport(results);
+		assumeTrue(dockerAvailable, "Docker is not available, create table and append stages were skipped");
+	}
+	
+	/**
+	 * @param postGisContainer started container, thrown away after the test
+	 */
+	private static JDBCDataStore connectPostGis(PostgreSQLContainer<?> postGisContainer) throws IOException {
+		String port = String.valueOf(postGisContainer.getMappedPort(PostgreSQLContainer.POSTGRESQL_PORT));
+		return PostGisUtil.getPostGisDataStore(
+			"postgis",                             // db type
+			postGisContainer.getHost(),            // db server host
+			port,                                  // db server port
+			postGisContainer.getDatabaseName(),    // database name
+			"public",                              // db schema name, the container is used by this test only
+			postGisContainer.getUsername(),        // db connection user id
+			postGisContainer.getPassword()         // db connection password
+		);
+	}
+}
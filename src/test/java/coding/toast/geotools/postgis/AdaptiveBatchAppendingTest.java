@@ -0,0 +1,152 @@
+package coding.toast.geotools.postgis;
+
+import coding.toast.geotools.utils.AdaptiveBatchTuner;
+import coding.toast.geotools.utils.AdaptiveFeatureWriter;
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.PostGisUtil;
+import coding.toast.geotools.utils.ShapeFileImportUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import coding.toast.geotools.utils.SyntheticShapeFileUtil;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test for appending features with a batch size that is tuned while writing, see {@link AdaptiveBatchTuner}.<br>
+ * The values it settles on are printed (and logged), use them instead of a hardcoded BATCH_SIZE.
+ */
+public class AdaptiveBatchAppendingTest {
+	
+	@Test
+	@DisplayName("The tuner finds the commit interval of a simulated database")
+	void simulatedDatabaseTest() {
+		// simulated commit : 20ms round trip + 0.01ms per row, rows get slower above 8000 per transaction
+		AdaptiveBatchTuner tuner = new AdaptiveBatchTuner(null,
+			new AdaptiveBatchTuner.Bounds(1, 1, 100, 100_000, Duration.ofSeconds(5)), 1_000);
+		for (int i = 0; i < 200 && !tuner.getSettings().settled(); i++) {
+			int rows = tuner.getCommitInterval();
+			double millis = 20 + rows * 0.01 * (1 + Math.pow(Math.max(0, rows - 8_000) / 8_000.0, 2));
+			tuner.batchWritten(rows, (long) (millis * 1_000_000));
+		}
+		
+		AdaptiveBatchTuner.Settings settings = tuner.getSettings();
+		System.out.println(settings);
+		assertTrue(settings.settled());
+		assertTrue(settings.commitInterval() >= 4_000 && settings.commitInterval() <= 16_000);
+	}
+	
+	@Test
+	@DisplayName("AdaptiveFeatureWriter changes its commit interval and commits every feature once")
+	void adaptiveFeatureWriterTest() throws IOException, SchemaException {
+		SimpleFeatureType pointType = DataUtilities.createType("points", "the_geom:Point:srid=5186,id:Long");
+		MemoryDataStore memoryDataStore = new MemoryDataStore();
+		memoryDataStore.createSchema(pointType);
+		SimpleFeatureStore featureStore = (SimpleFeatureStore) memoryDataStore.getFeatureSource("points");
+		
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(pointType);
+		int featureCount = 50_000;
+		Set<Integer> commitIntervals = new HashSet<>();
+		
+		AdaptiveFeatureWriter writer = new AdaptiveFeatureWriter(featureStore,
+			new AdaptiveBatchTuner.Bounds(1, 1, 500, 20_000, Duration.ofSeconds(5)));
+		try (writer) {
+			for (long id = 0; id < featureCount; id++) {
+				builder.add(geometryFactory.createPoint(new Coordinate(200_000 + id, 500_000)));
+				builder.add(id);
+				writer.write(builder.buildFeature(null));
+				commitIntervals.add(writer.getSettings().commitInterval());
+			}
+		}
+		// close() commits the rest
+		assertEquals(featureCount, writer.getWrittenCount());
+		System.out.println("commit intervals : " + commitIntervals + ", " + writer.getSettings());
+		
+		// the tuner probes another commit interval after the first commits
+		assertTrue(commitIntervals.size() > 1, "commit interval never changed : " + commitIntervals);
+		
+		Set<Long> ids = new HashSet<>();
+		try (SimpleFeatureIterator features = featureStore.getFeatures().features()) {
+			while (features.hasNext()) {
+				SimpleFeature feature = features.next();
+				assertTrue(ids.add((Long) feature.getAttribute("id")), "committed twice : " + feature.getAttribute("id"));
+			}
+		} finally {
+			memoryDataStore.dispose();
+		}
+		assertEquals(featureCount, ids.size());
+	}
+	
+	@Test
+	@DisplayName("Append generated points to the sample table with a tuned batch size")
+	void appendWithAdaptiveBatchSize() throws IOException, FactoryException {
+		System.setProperty("org.geotools.referencing.forceXY", "true");
+		
+		// 200,000 points in EPSG:5186, the same CRS as the sample table
+		Path shapeFilePath = Files.createTempDirectory("adaptive_batch").resolve("points.shp");
+		SyntheticShapeFileUtil.generate(shapeFilePath, new SyntheticShapeFileUtil.Spec(
+			Point.class, 200_000, 0, 1, 50, CRS.decode("EPSG:5186"), StandardCharsets.UTF_8, 5186));
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(shapeFilePath.toString(), null);
+		
+		JDBCDataStore postGisDataStore = PostGisUtil.getPostGisDataStore(
+			"postgis",        // db type
+			"localhost",      // db server host
+			"5432",           // db server port
+			"postgres",       // database name
+			"public",         // db schema name
+			"postgres",       // db connection user id
+			"root"            // db connection password
+		);
+		
+		// same table as ShapeFileToDatabaseTableAppendingTest
+		String targetTableName = "sample";
+		
+		try {
+			if (!Arrays.asList(postGisDataStore.getTypeNames()).contains(targetTableName)) {
+				System.err.println("No Table Found!!!!!!");
+				return;
+			}
+			
+			AdaptiveBatchTuner tuner = new AdaptiveBatchTuner(postGisDataStore, AdaptiveBatchTuner.Bounds.defaults(), 1_000);
+			ShapeFileImportUtil.ImportResult result = ShapeFileImportUtil.importFeatures(
+				shapeFileDataStore.getFeatureSource(),
+				postGisDataStore,
+				targetTableName,
+				tuner
+			);
+			
+			System.out.println("imported : " + result.importedCount() + ", elapsed : " + result.elapsed().toMillis() + " ms");
+			// Pin these values : JDBCDataStoreFactory.BATCH_INSERT_SIZE and the import batch size
+			System.out.println(tuner.getSettings());
+		} finally {
+			DataStoreUtil.closeDataStores(postGisDataStore, shapeFileDataStore);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package coding.toast.geotools.postgis;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.PostGisUtil;
+import coding.toast.geotools.utils.ShapeFileExportUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test for exporting PostGIS tables to ShapeFiles.<br>
+ * Each table is written by its own thread, see {@link ShapeFileExportUtil}.
+ * The split files are tested with a MemoryDataStore, no database is needed for splitExportTest.
+ */
+public class DatabaseTableToShapeFileExportTest {
+	
+	@Test
+	void exportAllTablesToShapeFile() throws IOException {
+		
+		JDBCDataStore postGisDataStore = PostGisUtil.getPostGisDataStore(
+			"postgis",        // db type
+			"localhost",      // db server host
+			"5432",           // db server port
+			"postgres",       // database name
+			"public",         // db schema name
+			"postgres",       // db connection user id
+			"root"            // db connection password
+		);
+		
+		// Note: every export thread uses its own database connection,
+		// so keep maxThreads lower than JDBCDataStoreFactory.MAXCONN (default: 10)
+		List<String> tableNames = Arrays.asList(postGisDataStore.getTypeNames());
+		Path outputDirectory = Files.createTempDirectory("shapefile_export");
+		
+		try {
+			List<ShapeFileExportUtil.ExportResult> results = ShapeFileExportUtil.exportTables(
+				postGisDataStore,
+				tableNames,
+				outputDirectory,
+				"EUC-KR",  // encoding for dbf, also written in the .cpg file
+				4          // maximum tables written at the same time
+			);
+			
+			for (ShapeFileExportUtil.ExportResult result : results) {
+				System.out.println(result.tableName() + " : " + result.featureCount() + " features, "
+					+ result.elapsed().toMillis() + " ms, files = " + result.shapeFiles());
+				
+				// every row of the table is in exactly one of the files
+				long written = 0;
+				for (Path shapeFile : result.shapeFiles()) {
+					written += readShapeFile(shapeFile, feature -> {});
+				}
+				assertEquals(result.featureCount(), written);
+				assertEquals(postGisDataStore.getFeatureSource(result.tableName()).getFeatures().size(), written);
+			}
+			
+			// the .cpg file is read back the same way as an imported ShapeFile
+			for (ShapeFileExportUtil.ExportResult result : results) {
+				Path firstShapeFile = result.shapeFiles().get(0);
+				System.out.println(firstShapeFile.getFileName() + " encoding : "
+					+ ShapeFileUtil.readShapeFileEncoding(firstShapeFile.toString(), null));
+				
+				ShapefileDataStore exported = ShapeFileUtil.getShapeFileDataStore(firstShapeFile.toString(), null);
+				System.out.println(exported.getSchema());
+				DataStoreUtil.closeDataStores(exported);
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(postGisDataStore);
+		}
+	}
+	
+	@Test
+	@DisplayName("A split table doesn't overwrite parcel_1, and each file is filled up to maxFileBytes")
+	void splitExportTest() throws IOException, SchemaException {
+		// parcel is split, parcel_1 is a real table (the old split file name of parcel)
+		Map<String, Integer> rowCounts = new LinkedHashMap<>();
+		rowCounts.put("parcel", 1_000);
+		rowCounts.put("parcel_1", 10);
+		
+		MemoryDataStore memoryDataStore = new MemoryDataStore();
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		for (Map.Entry<String, Integer> rowCount : rowCounts.entrySet()) {
+			// UUID has no dbf type, it is written as text
+			SimpleFeatureType type = DataUtilities.createType(rowCount.getKey(),
+				"the_geom:Point:srid=5186,id:Integer,uid:java.util.UUID");
+			memoryDataStore.createSchema(type);
+			SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+			List<SimpleFeature> features = new ArrayList<>();
+			for (int id = 0; id < rowCount.getValue(); id++) {
+				builder.add(geometryFactory.createPoint(new Coordinate(200_000 + id, 500_000)));
+				builder.add(id);
+				builder.add(uid(id));
+				features.add(builder.buildFeature(null));
+			}
+			((SimpleFeatureStore) memoryDataStore.getFeatureSource(rowCount.getKey()))
+				.addFeatures(DataUtilities.collection(features));
+		}
+		
+		Path outputDirectory = Files.createTempDirectory("shapefile_export");
+		long maxFileBytes = 64 * 1024;
+		List<ShapeFileExportUtil.ExportResult> results = ShapeFileExportUtil.exportTables(
+			memoryDataStore, List.copyOf(rowCounts.keySet()), outputDirectory, "UTF-8", 2, maxFileBytes);
+		
+		for (ShapeFileExportUtil.ExportResult result : results) {
+			System.out.println(result.tableName() + " : " + result.featureCount() + " features, files = " + result.shapeFiles());
+			int rowCount = rowCounts.get(result.tableName());
+			assertEquals(rowCount, result.featureCount());
+			
+			List<Path> shapeFiles = result.shapeFiles();
+			Path dbfPath = outputDirectory.resolve(result.tableName() + ".dbf");
+			// the dbf records are much longer than the 28 bytes of a point record, so the dbf decides the split
+			int[] dbfHeader = readDbfHeaderAndRecordLength(dbfPath);
+			long fullFileRows = (maxFileBytes - dbfHeader[0] - 1) / dbfHeader[1];
+			
+			Set<Integer> ids = new HashSet<>();
+			for (int i = 0; i < shapeFiles.size(); i++) {
+				Path shapeFile = shapeFiles.get(i);
+				assertEquals(i == 0 ? result.tableName() + ".shp" : "%s_part%03d.shp".formatted(result.tableName(), i),
+					shapeFile.getFileName().toString());
+				assertTrue(Files.size(shapeFile) <= maxFileBytes);
+				assertTrue(Files.size(shapeFile.resolveSibling(shapeFile.getFileName().toString().replace(".shp", ".dbf")))
+					<= maxFileBytes);
+				
+				long fileRows = readShapeFile(shapeFile, feature -> {
+					int id = ((Number) feature.getAttribute("id")).intValue();
+					assertTrue(ids.add(id), "written twice : " + id);
+					assertEquals(uid(id).toString(), feature.getAttribute("uid"));
+				});
+				// every file but the last one is full
+				long expectedRows = i < shapeFiles.size() - 1 ? fullFileRows : rowCount - fullFileRows * i;
+				System.out.println(shapeFile.getFileName() + " : " + fileRows + " features");
+				assertEquals(expectedRows, fileRows, shapeFile.getFileName().toString());
+			}
+			assertEquals(rowCount, ids.size());
+			assertEquals((rowCount + fullFileRows - 1) / fullFileRows, shapeFiles.size());
+		}
+		
+		try (var files = Files.list(outputDirectory)) {
+			for (Path file : files.toList()) {
+				Files.deleteIfExists(file);
+			}
+		}
+		Files.deleteIfExists(outputDirectory);
+	}
+	
+	private static UUID uid(int id) {
+		return UUID.nameUUIDFromBytes(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * @return number of features in the ShapeFile
+	 */
+	private static long readShapeFile(Path shapeFile, Consumer<SimpleFeature> consumer) throws IOException {
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(shapeFile.toString(), null);
+		long count = 0;
+		try (SimpleFeatureIterator features = shapeFileDataStore.getFeatureSource().getFeatures().features()) {
+			while (features.hasNext()) {
+				consumer.accept(features.next());
+				count++;
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+		return count;
+	}
+	
+	/**
+	 * @return [header length, record length] of a dbf file
+	 */
+	private static int[] readDbfHeaderAndRecordLength(Path dbfPath) throws IOException {
+		try (FileChannel channel = FileChannel.open(dbfPath, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			return new int[]{header.getShort(8) & 0xFFFF, header.getShort(10) & 0xFFFF};
+		}
+	}
+}
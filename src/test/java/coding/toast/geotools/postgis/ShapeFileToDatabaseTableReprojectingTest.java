@@ -0,0 +1,135 @@
+package coding.toast.geotools.postgis;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.PostGisUtil;
+import coding.toast.geotools.utils.ShapeFileImportUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.feature.SchemaException;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test class for appending shapefile data to a PostGIS table which uses another CRS.<br>
+ * The sample shapefile is EPSG:5186, and the target table is EPSG:4326.
+ * Geometries are reprojected while they are loaded, see {@link ShapeFileImportUtil}.
+ */
+public class ShapeFileToDatabaseTableReprojectingTest {
+	
+	@BeforeAll
+	static void beforeAll() {
+		// Without this, EPSG:4326 coordinates are written as (latitude, longitude)!
+		// See TransformTests for the details.
+		System.setProperty("org.geotools.referencing.forceXY", "true");
+	}
+	
+	@Test
+	@DisplayName("Features of a memory source are not changed by the reprojection")
+	void sourceFeaturesAreNotReprojectedInPlace() throws IOException, FactoryException, SchemaException {
+		// no database needed : MemoryDataStore stands in for both sides
+		MemoryDataStore sourceDataStore = new MemoryDataStore(
+			DataUtilities.createType("sample", "geom:Point:srid=5186,id:Long"));
+		MemoryDataStore targetDataStore = new MemoryDataStore(
+			DataUtilities.createType("sample_4326", "geom:Point:srid=4326,id:Long"));
+		
+		SimpleFeature sourceFeature = DataUtilities.template(sourceDataStore.getSchema("sample"));
+		Point sourcePoint = new GeometryFactory().createPoint(new Coordinate(200_000, 550_000));
+		sourceFeature.setDefaultGeometry(sourcePoint);
+		sourceFeature.setAttribute("id", 1L);
+		sourceDataStore.addFeature(sourceFeature);
+		
+		ShapeFileImportUtil.ImportResult result = ShapeFileImportUtil.importFeatures(
+			sourceDataStore.getFeatureSource("sample"),
+			targetDataStore,
+			"sample_4326",
+			1000 // batch size
+		);
+		assertTrue(result.reprojected());
+		
+		// the MemoryDataStore hands out its own feature, which must still be in EPSG:5186
+		SimpleFeature storedSource = DataUtilities.first(sourceDataStore.getFeatureSource("sample").getFeatures());
+		assertEquals(new Coordinate(200_000, 550_000), ((Point) storedSource.getDefaultGeometry()).getCoordinate());
+		
+		SimpleFeature imported = DataUtilities.first(targetDataStore.getFeatureSource("sample_4326").getFeatures());
+		Coordinate lonLat = ((Point) imported.getDefaultGeometry()).getCoordinate();
+		System.out.println("EPSG:5186 " + sourcePoint + " => EPSG:4326 " + lonLat);
+		assertTrue(lonLat.x > 124 && lonLat.x < 132 && lonLat.y > 33 && lonLat.y < 39);
+	}
+	
+	@Test
+	void appendShapeFileDataToTableWithOtherCrs() throws IOException, FactoryException {
+		
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		// Same as ShapeFileToDatabaseTableAppendingTest,
+		// a missing EPSG code in the prj file is replaced by the user input.
+		CoordinateReferenceSystem shapeFileCrs = shapeFileDataStore.getSchema().getCoordinateReferenceSystem();
+		Integer epsgCode = CRS.lookupEpsgCode(shapeFileCrs, false);
+		if (epsgCode == null || epsgCode == 0) {
+			shapeFileDataStore.forceSchemaCRS(CRS.decode("EPSG:5186"));
+		}
+		
+		DataStore postGisDataStore = PostGisUtil.getPostGisDataStore(
+			"postgis",
+			"localhost",
+			"5432",
+			"postgres",
+			"public",
+			"postgres",
+			"root"
+		);
+		
+		// Target table name for data insert
+		String targetTableName = "sample_4326";
+		/*
+		-- table DDL
+		create table public.sample_4326
+		(
+		    fid  serial not null
+		        primary key,
+		    id   bigint,
+		    name varchar,
+		    geom geometry(Point, 4326)
+		);
+		 */
+		
+		try {
+			if (!Arrays.asList(postGisDataStore.getTypeNames()).contains(targetTableName)) {
+				System.err.println("No Table Found!!!!!!");
+				return;
+			}
+			
+			ShapeFileImportUtil.ImportResult result = ShapeFileImportUtil.importFeatures(
+				shapeFileDataStore.getFeatureSource(),
+				postGisDataStore,
+				targetTableName,
+				1000 // batch size
+			);
+			
+			System.out.println("imported : " + result.importedCount()
+				+ ", reprojected : " + result.reprojected()
+				+ ", elapsed : " + result.elapsed().toMillis() + " ms");
+		} finally {
+			DataStoreUtil.closeDataStores(postGisDataStore, shapeFileDataStore);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package coding.toast.geotools.postgis;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.GeometryValidator;
+import coding.toast.geotools.utils.PostGisUtil;
+import coding.toast.geotools.utils.ShapeFileImportUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import coding.toast.geotools.utils.SyntheticShapeFileUtil;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.SchemaException;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.operation.valid.TopologyValidationError;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test for validating (and repairing) geometries before they are loaded, see {@link GeometryValidator}.<br>
+ * The benchmark feature count can be changed with -DgeometryValidation.features=1000000
+ */
+public class ShapeFileToDatabaseTableValidatingTest {
+	
+	private static final long BENCHMARK_FEATURES = Long.getLong("geometryValidation.features", 200_000);
+	
+	@Test
+	@DisplayName("Invalid polygons are repaired or rejected with the reason")
+	void repairOrRejectTest() throws IOException, SchemaException, ParseException {
+		SimpleFeatureType schema = DataUtilities.createType("parcel", "the_geom:Polygon:srid=5186,id:Long,name:String");
+		WKTReader wktReader = new WKTReader();
+		
+		List<SimpleFeature> features = new ArrayList<>();
+		for (String wkt : List.of(
+			"POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))",                       // valid
+			"POLYGON((0 0, 10 0, 10 10, 5 10, 5 15, 5 10, 0 10, 0 0))",     // spike : repaired to one polygon
+			"POLYGON((0 0, 10 10, 10 0, 0 10, 0 0))",                       // bow-tie : repaired to 2 polygons, doesn't fit a Polygon column
+			"POLYGON((0 0, 10 0, 20 0, 0 0))")) {                           // no area : collapsed to empty
+			SimpleFeature feature = DataUtilities.template(schema);
+			feature.setDefaultGeometry(wktReader.read(wkt));
+			feature.setAttribute("id", (long) features.size());
+			feature.setAttribute("name", "필지 " + features.size());
+			features.add(feature);
+		}
+		
+		Path rejectShapeFilePath = Files.createTempDirectory("geometry_validation").resolve("parcel_reject.shp");
+		GeometryValidator.ValidationReport report;
+		try (GeometryValidator validator = new GeometryValidator(rejectShapeFilePath)) {
+			List<SimpleFeature> accepted = features.parallelStream().filter(validator::validate).toList();
+			assertEquals(2, accepted.size());
+			accepted.forEach(feature -> assertTrue(((Polygon) feature.getDefaultGeometry()).isValid()));
+			
+			validator.writeRejects();
+			report = validator.getReport();
+		}
+		
+		System.out.println("checked : " + report.checked() + ", valid : " + report.valid());
+		System.out.println("repaired : " + GeometryValidator.ValidationReport.byMessage(report.repaired()));
+		System.out.println("rejected : " + GeometryValidator.ValidationReport.byMessage(report.rejected())
+			+ " => " + report.rejectShapeFiles());
+		assertEquals(Map.of(TopologyValidationError.RING_SELF_INTERSECTION, 1L), report.repaired());
+		assertEquals(Map.of(TopologyValidationError.SELF_INTERSECTION, 2L), report.rejected());
+		assertEquals(List.of(rejectShapeFilePath), report.rejectShapeFiles());
+		
+		// rejects are kept as they were, with the reason
+		ShapefileDataStore rejectDataStore = ShapeFileUtil.getShapeFileDataStore(rejectShapeFilePath.toString(), null);
+		try (SimpleFeatureIterator rejects = rejectDataStore.getFeatureSource().getFeatures().features()) {
+			int count = 0;
+			while (rejects.hasNext()) {
+				SimpleFeature reject = rejects.next();
+				System.out.println(reject.getAttribute("name") + " : " + reject.getAttribute(GeometryValidator.REASON_FIELD));
+				assertNotNull(reject.getAttribute(GeometryValidator.REASON_FIELD));
+				count++;
+			}
+			assertEquals(2, count);
+		} finally {
+			DataStoreUtil.closeDataStores(rejectDataStore);
+		}
+	}
+	
+	@Test
+	@DisplayName("Rejects of another geometry type go to their own ShapeFile")
+	void rejectsOfMixedGeometryTypesTest() throws IOException, SchemaException, ParseException {
+		// a generic geometry column, like geometry(Geometry, 5186) in PostGIS
+		SimpleFeatureType schema = DataUtilities.createType("parcel", "the_geom:Geometry:srid=5186,id:Long");
+		WKTReader wktReader = new WKTReader();
+		
+		List<SimpleFeature> features = new ArrayList<>();
+		for (String wkt : List.of(
+			"POLYGON((0 0, 10 10, 10 0, 0 10, 0 0))",                                       // bow-tie
+			"LINESTRING(0 0, 0 0)",                                                          // too few points
+			"MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)), ((5 5, 15 5, 15 15, 5 15, 5 5)))")) { // overlapping parts
+			SimpleFeature feature = DataUtilities.template(schema);
+			feature.setDefaultGeometry(wktReader.read(wkt));
+			feature.setAttribute("id", (long) features.size());
+			features.add(feature);
+		}
+		
+		Path rejectShapeFilePath = Files.createTempDirectory("geometry_validation").resolve("parcel_reject.shp");
+		GeometryValidator.ValidationReport report;
+		try (GeometryValidator validator = new GeometryValidator(rejectShapeFilePath, StandardCharsets.UTF_8, false)) {
+			// no repair : every invalid feature is rejected
+			assertEquals(0, features.stream().filter(validator::validate).count());
+			validator.writeRejects();
+			report = validator.getReport();
+		}
+		
+		System.out.println("rejected : " + GeometryValidator.ValidationReport.byMessage(report.rejected())
+			+ " => " + report.rejectShapeFiles());
+		assertEquals(Map.of(TopologyValidationError.SELF_INTERSECTION, 2L, TopologyValidationError.TOO_FEW_POINTS, 1L),
+			report.rejected());
+		assertEquals(List.of(rejectShapeFilePath.resolveSibling("parcel_reject_polygon.shp"),
+			rejectShapeFilePath.resolveSibling("parcel_reject_line.shp")), report.rejectShapeFiles());
+		
+		// every reject keeps its geometry
+		Map<Path, Integer> expectedCounts = Map.of(report.rejectShapeFiles().get(0), 2, report.rejectShapeFiles().get(1), 1);
+		for (Path rejectShapeFile : report.rejectShapeFiles()) {
+			ShapefileDataStore rejectDataStore = ShapeFileUtil.getShapeFileDataStore(rejectShapeFile.toString(), null);
+			try (SimpleFeatureIterator rejects = rejectDataStore.getFeatureSource().getFeatures().features()) {
+				int count = 0;
+				while (rejects.hasNext()) {
+					SimpleFeature reject = rejects.next();
+					System.out.println(rejectShapeFile.getFileName() + " " + reject.getAttribute("id") + " : "
+						+ reject.getAttribute(GeometryValidator.REASON_FIELD));
+					assertNotNull(reject.getDefaultGeometry());
+					count++;
+				}
+				assertEquals(expectedCounts.get(rejectShapeFile), count);
+			} finally {
+				DataStoreUtil.closeDataStores(rejectDataStore);
+			}
+		}
+	}
+	
+	@Test
+	@DisplayName("Overhead of the validation on valid polygons")
+	void validationOverheadBenchmark() throws IOException, FactoryException {
+		// 32 vertices per polygon, all valid
+		Path shapeFilePath = Files.createTempDirectory("geometry_validation").resolve("valid.shp");
+		SyntheticShapeFileUtil.generate(shapeFilePath, new SyntheticShapeFileUtil.Spec(
+			Polygon.class, BENCHMARK_FEATURES, 32, 1, 20, CRS.decode("EPSG:5186"), StandardCharsets.UTF_8, 5186));
+		
+		List<SimpleFeature> features = new ArrayList<>();
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(shapeFilePath.toString(), null);
+		long start = System.nanoTime();
+		try (SimpleFeatureIterator iterator = shapeFileDataStore.getFeatureSource().getFeatures().features()) {
+			while (iterator.hasNext()) {
+				features.add(iterator.next());
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+		long readNanos = System.nanoTime() - start;
+		
+		Path rejectShapeFilePath = shapeFilePath.resolveSibling("valid_reject.shp");
+		// warm up
+		for (int i = 0; i < 3; i++) {
+			try (GeometryValidator validator = new GeometryValidator(rejectShapeFilePath)) {
+				features.parallelStream().filter(validator::validate).count();
+			}
+		}
+		
+		GeometryValidator.ValidationReport report;
+		try (GeometryValidator validator = new GeometryValidator(rejectShapeFilePath)) {
+			start = System.nanoTime();
+			// the same parallel pass as ShapeFileImportUtil
+			features.parallelStream().filter(validator::validate).count();
+			long validateNanos = System.nanoTime() - start;
+			report = validator.getReport();
+			
+			System.out.println("\n===== " + features.size() + " valid polygons =====");
+			System.out.println("read ShapeFile : " + readNanos / 1_000_000 + " ms");
+			System.out.println("validate       : " + validateNanos / 1_000_000 + " ms ("
+				+ "%.2f".formatted(validateNanos / 1000.0 / features.size()) + " µs per feature, "
+				+ "%.1f%%".formatted(validateNanos * 100.0 / readNanos) + " of the read time)");
+		}
+		
+		assertEquals(features.size(), report.valid());
+		assertEquals(0, report.rejectedCount());
+		assertTrue(report.rejectShapeFiles().isEmpty());
+	}
+	
+	@Test
+	void appendShapeFileDataWithValidation() throws IOException, FactoryException {
+		
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		DataStore postGisDataStore = PostGisUtil.getPostGisDataStore(
+			"postgis",
+			"localhost",
+			"5432",
+			"postgres",
+			"public",
+			"postgres",
+			"root"
+		);
+		
+		// Target table name for data insert, same as ShapeFileToDatabaseTableAppendingTest
+		String targetTableName = "sample";
+		/*
+		-- table DDL
+		create table public.sample
+		(
+		    fid  serial not null
+		        primary key,
+		    id   bigint,
+		    name varchar,
+		    geom geometry(Point, 5186)
+		);
+		 */
+		
+		Path rejectShapeFilePath = Files.createTempDirectory("geometry_validation").resolve("sample_reject.shp");
+		
+		try (GeometryValidator validator = new GeometryValidator(rejectShapeFilePath)) {
+			if (!Arrays.asList(postGisDataStore.getTypeNames()).contains(targetTableName)) {
+				System.err.println("No Table Found!!!!!!");
+				return;
+			}
+			
+			ShapeFileImportUtil.ImportResult result = ShapeFileImportUtil.importFeatures(
+				shapeFileDataStore.getFeatureSource(),
+				postGisDataStore,
+				targetTableName,
+				1000, // batch size
+				validator
+			);
+			
+			GeometryValidator.ValidationReport report = validator.getReport();
+			System.out.println("imported : " + result.importedCount()
+				+ ", elapsed : " + result.elapsed().toMillis() + " ms");
+			System.out.println("checked : " + report.checked() + ", valid : " + report.valid()
+				+ ", repaired : " + GeometryValidator.ValidationReport.byMessage(report.repaired())
+				+ ", rejected : " + GeometryValidator.ValidationReport.byMessage(report.rejected()));
+			if (!report.rejectShapeFiles().isEmpty()) {
+				System.out.println("rejected features are written to " + report.rejectShapeFiles());
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(postGisDataStore, shapeFileDataStore);
+		}
+	}
+}
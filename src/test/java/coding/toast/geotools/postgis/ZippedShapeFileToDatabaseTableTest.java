@@ -0,0 +1,117 @@
+package coding.toast.geotools.postgis;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.PostGisUtil;
+import coding.toast.geotools.utils.ShapeFileImportUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import org.geotools.data.DataStore;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opengis.referencing.FactoryException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test for importing a zipped ShapeFile into a PostGIS table, without extracting the zip first.<br>
+ * The zip is made from src/test/resources/sample, with the files inside a "delivery" directory like a partner archive.
+ */
+public class ZippedShapeFileToDatabaseTableTest {
+	
+	/**
+	 * deleted by JUnit after all tests. (fails on Windows if a DataStore left the zip open)
+	 */
+	@TempDir
+	static Path tempDirectory;
+	
+	private static Path zipFilePath;
+	
+	@BeforeAll
+	static void beforeAll() throws IOException {
+		zipFilePath = tempDirectory.resolve("sample.zip");
+		try (OutputStream outputStream = Files.newOutputStream(zipFilePath);
+		     ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+			for (String extension : List.of("shp", "shx", "dbf", "prj", "cpg")) {
+				zipOutputStream.putNextEntry(new ZipEntry("delivery/sample." + extension));
+				Files.copy(Paths.get("src/test/resources/sample/sample." + extension), zipOutputStream);
+				zipOutputStream.closeEntry();
+			}
+		}
+	}
+	
+	@Test
+	@DisplayName("Read a ShapeFile inside a zip")
+	void readZippedShapeFile() throws IOException {
+		List<String> shpEntryNames = ShapeFileUtil.findShapeFileEntries(zipFilePath.toString());
+		System.out.println("ShapeFiles in zip : " + shpEntryNames);
+		assertEquals(List.of("delivery/sample.shp"), shpEntryNames);
+		
+		ShapefileDataStore zippedDataStore = ShapeFileUtil.getShapeFileDataStore(zipFilePath.toString(), shpEntryNames.get(0), null);
+		ShapefileDataStore extractedDataStore = ShapeFileUtil.getShapeFileDataStore("src/test/resources/sample/sample.shp", null);
+		try {
+			// the encoding comes from the .cpg entry
+			System.out.println("encoding : " + zippedDataStore.getCharset());
+			assertEquals(extractedDataStore.getCharset(), zippedDataStore.getCharset());
+			assertEquals(extractedDataStore.getSchema().getCoordinateReferenceSystem(),
+				zippedDataStore.getSchema().getCoordinateReferenceSystem());
+			assertEquals(extractedDataStore.getFeatureSource().getFeatures().size(),
+				zippedDataStore.getFeatureSource().getFeatures().size());
+		} finally {
+			DataStoreUtil.closeDataStores(zippedDataStore, extractedDataStore);
+		}
+	}
+	
+	@Test
+	@DisplayName("Import every ShapeFile of a zip into a PostGIS table")
+	void importZippedShapeFile() throws IOException, FactoryException {
+		DataStore postGisDataStore = PostGisUtil.getPostGisDataStore(
+			"postgis",
+			"localhost",
+			"5432",
+			"postgres",
+			"public",
+			"postgres",
+			"root"
+		);
+		
+		// same table as ShapeFileToDatabaseTableAppendingTest
+		String targetTableName = "sample";
+		
+		try {
+			if (!Arrays.asList(postGisDataStore.getTypeNames()).contains(targetTableName)) {
+				System.err.println("No Table Found!!!!!!");
+				return;
+			}
+			
+			for (String shpEntryName : ShapeFileUtil.findShapeFileEntries(zipFilePath.toString())) {
+				ShapefileDataStore zippedDataStore = ShapeFileUtil.getShapeFileDataStore(zipFilePath.toString(), shpEntryName, "EUC-KR");
+				try {
+					ShapeFileImportUtil.ImportResult result = ShapeFileImportUtil.importFeatures(
+						zippedDataStore.getFeatureSource(),
+						postGisDataStore,
+						targetTableName,
+						1000 // batch size
+					);
+					System.out.println(shpEntryName + " imported : " + result.importedCount()
+						+ ", elapsed : " + result.elapsed().toMillis() + " ms");
+				} finally {
+					DataStoreUtil.closeDataStores(zippedDataStore);
+				}
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(postGisDataStore);
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package coding.toast.geotools.process;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.process.ProcessException;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * <h2>Parallel spatial join (point-in-polygon, intersects)</h2>
+ * (1) polygons are prepared ({@link PreparedGeometry}) and put into a packed {@link STRtree}.<br>
+ * (2) points are read in chunks, and each chunk is joined by a {@link ForkJoinPool} worker.<br>
+ * (3) results are handed over chunk by chunk, so even 10M points never have to be in memory at once.
+ * The collection returned by {@link #spatialJoin} is lazy : the join runs while it is iterated, every time it is iterated.<br>
+ * <br>
+ * The static methods annotated with {@link DescribeProcess} are registered to gt-process by {@link SpatialJoinProcessFactory}.
+ * They can be called directly, or through Processors.createProcess(new NameImpl("toast", "spatialJoin")).
+ */
+public class SpatialJoinProcess {
+	
+	/**
+	 * number of points joined by a worker at once
+	 */
+	public static final int CHUNK_SIZE = 10_000;
+	
+	/**
+	 * prefix for polygon attribute names which already exist in the point schema
+	 */
+	private static final String JOIN_PREFIX = "join_";
+	
+	public enum SpatialPredicate {
+		/** point is inside the polygon (boundary excluded), point-in-polygon */
+		CONTAINS,
+		/** geometry touches or overlaps the polygon in any way */
+		INTERSECTS
+	}
+	
+	@DescribeProcess(title = "Spatial Join",
+		description = "Joins every point (or any geometry) with the polygons it falls into")
+	@DescribeResult(name = "result", description = "point attributes followed by the matched polygon attributes, joined while iterated")
+	public static SimpleFeatureCollection spatialJoin(
+		@DescribeParameter(name = "points", description = "features to join") SimpleFeatureCollection points,
+		@DescribeParameter(name = "polygons", description = "polygon layer") SimpleFeatureCollection polygons,
+		@DescribeParameter(name = "predicate", description = "CONTAINS or INTERSECTS", min = 0) SpatialPredicate predicate) {
+		
+		SpatialJoinIndex index = new SpatialJoinIndex(polygons);
+		SimpleFeatureType joinedType = createJoinedType(points.getSchema(), polygons.getSchema());
+		return new JoinedFeatureCollection(points, index, predicate == null ? SpatialPredicate.CONTAINS : predicate, joinedType);
+	}
+	
+	@DescribeProcess(title = "Spatial Join Aggregate",
+		description = "Counts the points inside each polygon, with sum/avg of an optional numeric point attribute")
+	@DescribeResult(name = "result",
+		description = "every polygon with join_count (points), join_value_count (numeric values), join_sum, join_avg attributes")
+	public static SimpleFeatureCollection spatialJoinAggregate(
+		@DescribeParameter(name = "points", description = "features to join") SimpleFeatureCollection points,
+		@DescribeParameter(name = "polygons", description = "polygon layer") SimpleFeatureCollection polygons,
+		@DescribeParameter(name = "attribute", description = "numeric point attribute for sum/avg", min = 0) String attribute,
+		@DescribeParameter(name = "predicate", description = "CONTAINS or INTERSECTS", min = 0) SpatialPredicate predicate) {
+		
+		SpatialJoinIndex index = new SpatialJoinIndex(polygons);
+		Aggregates aggregates = aggregate(points, index, predicate == null ? SpatialPredicate.CONTAINS : predicate, attribute);
+		
+		SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+		typeBuilder.init(polygons.getSchema());
+		typeBuilder.add(JOIN_PREFIX + "count", Long.class);
+		typeBuilder.add(JOIN_PREFIX + "value_count", Long.class);
+		typeBuilder.add(JOIN_PREFIX + "sum", Double.class);
+		typeBuilder.add(JOIN_PREFIX + "avg", Double.class);
+		SimpleFeatureType aggregateType = typeBuilder.buildFeatureType();
+		
+		ListFeatureCollection result = new ListFeatureCollection(aggregateType);
+		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(aggregateType);
+		for (int i = 0; i < index.size(); i++) {
+			SimpleFeature polygon = index.feature(i);
+			featureBuilder.addAll(polygon.getAttributes());
+			featureBuilder.add(aggregates.counts[i]);
+			featureBuilder.add(aggregates.valueCounts[i]);
+			featureBuilder.add(aggregates.sums[i]);
+			featureBuilder.add(aggregates.valueCounts[i] == 0 ? null : aggregates.sums[i] / aggregates.valueCounts[i]);
+			result.add(featureBuilder.buildFeature(polygon.getID()));
+		}
+		return result;
+	}
+	
+	/**
+	 * Join points with polygons and stream the joined features to the sink.<br>
+	 * The sink is only called from the calling thread, chunk by chunk, so it doesn't need to be thread-safe.
+	 * @param points     features to join
+	 * @param index      polygon index
+	 * @param predicate  spatial predicate
+	 * @param joinedType type created by {@link #createJoinedType(SimpleFeatureType, SimpleFeatureType)}
+	 * @param sink       receives every joined feature
+	 */
+	public static void join(SimpleFeatureCollection points, SpatialJoinIndex index, SpatialPredicate predicate,
+	                        SimpleFeatureType joinedType, Consumer<SimpleFeature> sink) {
+		try (SimpleFeatureIterator joined = new JoiningIterator(points, joinChunk(index, predicate, joinedType))) {
+			while (joined.hasNext()) {
+				sink.accept(joined.next());
+			}
+		}
+	}
+	
+	/**
+	 * joins one chunk of points, run by a worker thread
+	 */
+	private static Function<List<SimpleFeature>, List<SimpleFeature>> joinChunk(
+		SpatialJoinIndex index, SpatialPredicate predicate, SimpleFeatureType joinedType) {
+		return chunk -> {
+			SimpleFeatureBuilder builder = new SimpleFeatureBuilder(joinedType);
+			List<SimpleFeature> joined = new ArrayList<>();
+			for (SimpleFeature point : chunk) {
+				Geometry geometry = (Geometry) point.getDefaultGeometry();
+				index.forEachMatch(geometry, predicate, polygonIndex -> {
+					builder.addAll(point.getAttributes());
+					SimpleFeature polygon = index.feature(polygonIndex);
+					for (AttributeDescriptor descriptor : polygon.getFeatureType().getAttributeDescriptors()) {
+						if (!(descriptor instanceof GeometryDescriptor)) {
+							builder.add(polygon.getAttribute(descriptor.getLocalName()));
+						}
+					}
+					joined.add(builder.buildFeature(point.getID() + "-" + polygon.getID()));
+				});
+			}
+			return joined;
+		};
+	}
+	
+	/**
+	 * Count (and sum) points per polygon. Every worker thread accumulates into its own arrays, merged at the end.<br>
+	 * Every matched point is counted, but only numeric (non-null) attribute values go into the sum and the value count.
+	 * @param attribute numeric point attribute to sum, may be null
+	 * @return aggregates indexed like {@link SpatialJoinIndex#feature(int)}
+	 */
+	public static Aggregates aggregate(SimpleFeatureCollection points, SpatialJoinIndex index,
+	                                   SpatialPredicate predicate, String attribute) {
+		Queue<Aggregates> allPartials = new ConcurrentLinkedQueue<>();
+		ThreadLocal<Aggregates> partials = ThreadLocal.withInitial(() -> {
+			Aggregates partial = new Aggregates(index.size());
+			allPartials.add(partial);
+			return partial;
+		});
+		
+		try (SimpleFeatureIterator nothingToStream = new JoiningIterator(points, chunk -> {
+			Aggregates partial = partials.get();
+			for (SimpleFeature point : chunk) {
+				Object value = attribute == null ? null : point.getAttribute(attribute);
+				index.forEachMatch((Geometry) point.getDefaultGeometry(), predicate, polygonIndex -> {
+					partial.counts[polygonIndex]++;
+					if (value instanceof Number number) {
+						partial.valueCounts[polygonIndex]++;
+						partial.sums[polygonIndex] += number.doubleValue();
+					}
+				});
+			}
+			return List.of();
+		})) {
+			// every chunk is aggregated by the time hasNext() returns false
+			while (nothingToStream.hasNext()) {
+				nothingToStream.next();
+			}
+		}
+		
+		Aggregates total = new Aggregates(index.size());
+		for (Aggregates partial : allPartials) {
+			for (int i = 0; i < index.size(); i++) {
+				total.counts[i] += partial.counts[i];
+				total.valueCounts[i] += partial.valueCounts[i];
+				total.sums[i] += partial.sums[i];
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * Point attributes followed by the polygon attributes (without polygon geometry).
+	 */
+	public static SimpleFeatureType createJoinedType(SimpleFeatureType pointType, SimpleFeatureType polygonType) {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.init(pointType);
+		builder.setName(pointType.getTypeName() + "_" + polygonType.getTypeName());
+		
+		Set<String> names = new HashSet<>();
+		pointType.getAttributeDescriptors().forEach(descriptor -> names.add(descriptor.getLocalName()));
+		for (AttributeDescriptor descriptor : polygonType.getAttributeDescriptors()) {
+			if (descriptor instanceof GeometryDescriptor) {
+				continue;
+			}
+			String name = names.contains(descriptor.getLocalName())
+				? JOIN_PREFIX + descriptor.getLocalName() : descriptor.getLocalName();
+			builder.add(name, descriptor.getType().getBinding());
+		}
+		return builder.buildFeatureType();
+	}
+	
+	/**
+	 * maximum number of chunks read ahead of the consumer
+	 */
+	static int maxChunksInFlight() {
+		return ForkJoinPool.commonPool().getParallelism() * 2;
+	}
+	
+	/**
+	 * Result of {@link #spatialJoin}. Nothing is stored : every {@link #features()} call reads the points again
+	 * and joins them chunk by chunk while the returned iterator is consumed.
+	 */
+	private static class JoinedFeatureCollection extends BaseSimpleFeatureCollection {
+		
+		private final SimpleFeatureCollection points;
+		private final SpatialJoinIndex index;
+		private final SpatialPredicate predicate;
+		
+		JoinedFeatureCollection(SimpleFeatureCollection points, SpatialJoinIndex index,
+		                        SpatialPredicate predicate, SimpleFeatureType joinedType) {
+			super(joinedType);
+			this.points = points;
+			this.index = index;
+			this.predicate = predicate;
+		}
+		
+		@Override
+		public SimpleFeatureIterator features() {
+			return new JoiningIterator(points, joinChunk(index, predicate, getSchema()));
+		}
+	}
+	
+	/**
+	 * Reads points chunk by chunk on the consuming thread and joins each chunk on a {@link ForkJoinPool} worker.<br>
+	 * At most {@link #maxChunksInFlight()} chunks are in flight, so reading never runs far ahead of the consumer.
+	 * Results come out in the order of the points.
+	 */
+	private static class JoiningIterator implements SimpleFeatureIterator {
+		
+		private final SimpleFeatureIterator points;
+		private final Function<List<SimpleFeature>, List<SimpleFeature>> chunkJoiner;
+		private final int maxInFlight = maxChunksInFlight();
+		private final Queue<ForkJoinTask<List<SimpleFeature>>> inFlight = new ArrayDeque<>();
+		private Iterator<SimpleFeature> joinedChunk = Collections.emptyIterator();
+		
+		JoiningIterator(SimpleFeatureCollection points, Function<List<SimpleFeature>, List<SimpleFeature>> chunkJoiner) {
+			this.points = points.features();
+			this.chunkJoiner = chunkJoiner;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (!joinedChunk.hasNext()) {
+				submitChunks();
+				if (inFlight.isEmpty()) {
+					return false;
+				}
+				try {
+					joinedChunk = inFlight.poll().get().iterator();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ProcessException("Spatial join interrupted!", e);
+				} catch (ExecutionException e) {
+					throw new ProcessException("Spatial join failed!", e.getCause());
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return joinedChunk.next();
+		}
+		
+		@Override
+		public void close() {
+			inFlight.forEach(task -> task.cancel(true));
+			inFlight.clear();
+			points.close();
+		}
+		
+		private void submitChunks() {
+			while (inFlight.size() < maxInFlight && points.hasNext()) {
+				List<SimpleFeature> chunk = new ArrayList<>(CHUNK_SIZE);
+				while (chunk.size() < CHUNK_SIZE && points.hasNext()) {
+					chunk.add(points.next());
+				}
+				inFlight.add(ForkJoinPool.commonPool().submit(() -> chunkJoiner.apply(chunk)));
+			}
+		}
+	}
+	
+	/**
+	 * per polygon : number of matched points, number of numeric attribute values, and their sum
+	 */
+	public static class Aggregates {
+		public final long[] counts;
+		public final long[] valueCounts;
+		public final double[] sums;
+		
+		Aggregates(int size) {
+			this.counts = new long[size];
+			this.valueCounts = new long[size];
+			this.sums = new double[size];
+		}
+	}
+	
+	/**
+	 * Prepared polygons in a packed STRtree. Read-only after construction, so it is shared by all workers.<br>
+	 * Polygons without geometry are kept (so they are still aggregated, with count 0), but never match.
+	 */
+	public static class SpatialJoinIndex {
+		
+		private final List<SimpleFeature> features = new ArrayList<>();
+		private final List<PreparedGeometry> preparedGeometries = new ArrayList<>();
+		private final STRtree tree = new STRtree();
+		
+		public SpatialJoinIndex(SimpleFeatureCollection polygons) {
+			try (SimpleFeatureIterator iterator = polygons.features()) {
+				while (iterator.hasNext()) {
+					SimpleFeature feature = iterator.next();
+					Geometry geometry = (Geometry) feature.getDefaultGeometry();
+					if (geometry == null || geometry.isEmpty()) {
+						features.add(feature);
+						preparedGeometries.add(null);
+						continue;
+					}
+					tree.insert(geometry.getEnvelopeInternal(), features.size());
+					features.add(feature);
+					preparedGeometries.add(PreparedGeometryFactory.prepare(geometry));
+				}
+			}
+			// build (=pack) now. STRtree is safe for concurrent queries only once it is built.
+			tree.build();
+		}
+		
+		public int size() {
+			return features.size();
+		}
+		
+		public SimpleFeature feature(int polygonIndex) {
+			return features.get(polygonIndex);
+		}
+		
+		void forEachMatch(Geometry geometry, SpatialPredicate predicate, IntConsumer action) {
+			if (geometry == null || geometry.isEmpty()) {
+				return;
+			}
+			tree.query(geometry.getEnvelopeInternal(), item -> {
+				int polygonIndex = (Integer) item;
+				PreparedGeometry prepared = preparedGeometries.get(polygonIndex);
+				boolean matches = predicate == SpatialPredicate.CONTAINS
+					? prepared.contains(geometry)
+					: prepared.intersects(geometry);
+				if (matches) {
+					action.accept(polygonIndex);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package coding.toast.geotools.process;
+
+import org.geotools.process.factory.StaticMethodsProcessFactory;
+import org.geotools.text.Text;
+
+/**
+ * Registers the {@link SpatialJoinProcess} methods to gt-process under the "toast" namespace.<br>
+ * (toast:spatialJoin, toast:spatialJoinAggregate)<br>
+ * This factory is found by Processors through META-INF/services/org.geotools.process.ProcessFactory.
+ */
+public class SpatialJoinProcessFactory extends StaticMethodsProcessFactory<SpatialJoinProcess> {
+	
+	public static final String NAMESPACE = "toast";
+	
+	public SpatialJoinProcessFactory() {
+		super(Text.text("Spatial Join Processes"), NAMESPACE, SpatialJoinProcess.class);
+	}
+}
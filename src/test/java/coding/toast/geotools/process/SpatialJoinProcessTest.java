@@ -0,0 +1,260 @@
+package coding.toast.geotools.process;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.process.Process;
+import org.geotools.process.Processors;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test for {@link SpatialJoinProcess}.<br>
+ * The benchmark point count can be changed with -DspatialJoin.points=10000000 (10M points need about 1GB of heap,
+ * because the points are generated on the fly and never stored).
+ */
+public class SpatialJoinProcessTest {
+	
+	private static final GeometryFactory GEOMETRY_FACTORY = JTSFactoryFinder.getGeometryFactory();
+	
+	@Test
+	@DisplayName("Count sample.shp points per grid cell through gt-process")
+	void sampleShapeFileJoinTest() throws IOException, SchemaException {
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		try {
+			SimpleFeatureCollection points = shapeFileDataStore.getFeatureSource().getFeatures();
+			Envelope bounds = new Envelope(points.getBounds());
+			bounds.expandBy(100);
+			
+			// the process is looked up by name, like any other gt-process process
+			Process process = Processors.createProcess(new NameImpl(SpatialJoinProcessFactory.NAMESPACE, "spatialJoinAggregate"));
+			assertNotNull(process, "SpatialJoinProcessFactory is not registered!");
+			
+			Map<String, Object> input = new HashMap<>();
+			input.put("points", points);
+			input.put("polygons", createGrid(bounds, 3));
+			input.put("attribute", "id");
+			input.put("predicate", SpatialJoinProcess.SpatialPredicate.INTERSECTS);
+			Map<String, Object> output = process.execute(input, null);
+			
+			SimpleFeatureCollection cells = (SimpleFeatureCollection) output.get("result");
+			long totalCount = 0;
+			try (SimpleFeatureIterator iterator = cells.features()) {
+				while (iterator.hasNext()) {
+					SimpleFeature cell = iterator.next();
+					System.out.println("cell " + cell.getAttribute("cell_id")
+						+ " : count = " + cell.getAttribute("join_count")
+						+ ", sum(id) = " + cell.getAttribute("join_sum")
+						+ ", avg(id) = " + cell.getAttribute("join_avg"));
+					totalCount += (Long) cell.getAttribute("join_count");
+				}
+			}
+			
+			// a point on a shared cell edge is counted by both cells with INTERSECTS
+			System.out.println("points : " + points.size() + ", joined : " + totalCount);
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+	}
+	
+	@Test
+	@DisplayName("Points without a value are counted but not averaged, polygons without geometry are kept")
+	void aggregateNullValuesTest() throws SchemaException {
+		SimpleFeatureCollection polygons = createGrid(new Envelope(0, 10, 0, 10), 1);
+		SimpleFeatureBuilder cellBuilder = new SimpleFeatureBuilder(polygons.getSchema());
+		cellBuilder.add(null);
+		cellBuilder.add(1);
+		((ListFeatureCollection) polygons).add(cellBuilder.buildFeature("cell.no_geometry"));
+		
+		SimpleFeatureType pointType = DataUtilities.createType("points", "the_geom:Point:srid=5186,value:Double");
+		ListFeatureCollection points = new ListFeatureCollection(pointType);
+		SimpleFeatureBuilder pointBuilder = new SimpleFeatureBuilder(pointType);
+		for (Double value : new Double[]{10d, null}) {
+			pointBuilder.add(GEOMETRY_FACTORY.createPoint(new Coordinate(5, 5)));
+			pointBuilder.add(value);
+			points.add(pointBuilder.buildFeature("points." + points.size()));
+		}
+		
+		Map<Object, SimpleFeature> cells = new HashMap<>();
+		try (SimpleFeatureIterator iterator = SpatialJoinProcess.spatialJoinAggregate(points, polygons, "value", null).features()) {
+			while (iterator.hasNext()) {
+				SimpleFeature cell = iterator.next();
+				cells.put(cell.getAttribute("cell_id"), cell);
+			}
+		}
+		
+		SimpleFeature cell = cells.get(0);
+		assertEquals(2L, cell.getAttribute("join_count"));
+		assertEquals(1L, cell.getAttribute("join_value_count"));
+		assertEquals(10d, cell.getAttribute("join_sum"));
+		assertEquals(10d, cell.getAttribute("join_avg"));
+		
+		SimpleFeature noGeometry = cells.get(1);
+		assertNotNull(noGeometry, "a polygon without geometry must still be in the result");
+		assertEquals(0L, noGeometry.getAttribute("join_count"));
+		assertNull(noGeometry.getAttribute("join_avg"));
+	}
+	
+	@Test
+	@DisplayName("spatialJoin reads the points only while its result is iterated")
+	void spatialJoinStreamsTest() throws SchemaException {
+		Envelope extent = new Envelope(150_000, 250_000, 450_000, 550_000);
+		int readAhead = SpatialJoinProcess.maxChunksInFlight() * SpatialJoinProcess.CHUNK_SIZE;
+		RandomPointCollection points = new RandomPointCollection(readAhead * 3 + 123, extent);
+		
+		SimpleFeatureCollection joined = SpatialJoinProcess.spatialJoin(points, createGrid(extent, 10), null);
+		assertEquals(0, points.generated, "nothing is joined before the result is iterated");
+		
+		long count = 0;
+		try (SimpleFeatureIterator iterator = joined.features()) {
+			while (iterator.hasNext()) {
+				iterator.next();
+				count++;
+				// the points are never read far ahead of the consumer
+				assertTrue(points.generated <= count + readAhead);
+			}
+		}
+		// every random point is inside exactly one cell
+		assertEquals(points.size(), count);
+	}
+	
+	@Test
+	@DisplayName("Point-in-polygon benchmark")
+	void pointInPolygonBenchmark() throws SchemaException {
+		int pointCount = Integer.getInteger("spatialJoin.points", 1_000_000);
+		Envelope extent = new Envelope(150_000, 250_000, 450_000, 550_000); // somewhere inside EPSG:5186
+		
+		SimpleFeatureCollection polygons = createGrid(extent, 100); // 10,000 cells
+		SpatialJoinProcess.SpatialJoinIndex index = new SpatialJoinProcess.SpatialJoinIndex(polygons);
+		
+		// warm up
+		SpatialJoinProcess.aggregate(new RandomPointCollection(100_000, extent), index,
+			SpatialJoinProcess.SpatialPredicate.CONTAINS, "value");
+		
+		long start = System.nanoTime();
+		SpatialJoinProcess.Aggregates aggregates = SpatialJoinProcess.aggregate(
+			new RandomPointCollection(pointCount, extent), index,
+			SpatialJoinProcess.SpatialPredicate.CONTAINS, "value");
+		long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+		
+		// every random point is inside exactly one cell
+		assertEquals(pointCount, Arrays.stream(aggregates.counts).sum());
+		
+		System.out.println("points : " + pointCount + ", polygons : " + index.size()
+			+ ", parallelism : " + ForkJoinPool.commonPool().getParallelism());
+		System.out.println("elapsed : " + elapsedMillis + " ms, throughput : "
+			+ (pointCount * 1000L / elapsedMillis) + " points/sec");
+	}
+	
+	/**
+	 * square polygons covering the envelope (size x size)
+	 */
+	private static SimpleFeatureCollection createGrid(Envelope extent, int size) throws SchemaException {
+		SimpleFeatureType cellType = DataUtilities.createType("cells", "the_geom:Polygon:srid=5186,cell_id:Integer");
+		ListFeatureCollection cells = new ListFeatureCollection(cellType);
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(cellType);
+		
+		double cellWidth = extent.getWidth() / size;
+		double cellHeight = extent.getHeight() / size;
+		for (int row = 0; row < size; row++) {
+			for (int col = 0; col < size; col++) {
+				double minX = extent.getMinX() + col * cellWidth;
+				double minY = extent.getMinY() + row * cellHeight;
+				builder.add(GEOMETRY_FACTORY.toGeometry(new Envelope(minX, minX + cellWidth, minY, minY + cellHeight)));
+				builder.add(row * size + col);
+				cells.add(builder.buildFeature("cell." + (row * size + col)));
+			}
+		}
+		return cells;
+	}
+	
+	/**
+	 * Generates random points while iterating, so millions of points don't have to be kept in memory.
+	 */
+	private static class RandomPointCollection extends BaseSimpleFeatureCollection {
+		
+		private static final SimpleFeatureType POINT_TYPE;
+		
+		static {
+			try {
+				POINT_TYPE = DataUtilities.createType("points", "the_geom:Point:srid=5186,value:Double");
+			} catch (SchemaException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		private final int count;
+		private final Envelope extent;
+		
+		// points generated so far, by all iterators
+		private long generated;
+		
+		RandomPointCollection(int count, Envelope extent) {
+			super(POINT_TYPE);
+			this.count = count;
+			this.extent = extent;
+		}
+		
+		@Override
+		public int size() {
+			return count;
+		}
+		
+		@Override
+		public SimpleFeatureIterator features() {
+			SplittableRandom random = new SplittableRandom(count);
+			SimpleFeatureBuilder builder = new SimpleFeatureBuilder(POINT_TYPE);
+			return new SimpleFeatureIterator() {
+				private int index;
+				
+				@Override
+				public boolean hasNext() {
+					return index < count;
+				}
+				
+				@Override
+				public SimpleFeature next() {
+					double x = extent.getMinX() + random.nextDouble() * extent.getWidth();
+					double y = extent.getMinY() + random.nextDouble() * extent.getHeight();
+					builder.add(GEOMETRY_FACTORY.createPoint(new Coordinate(x, y)));
+					builder.add(random.nextDouble() * 100);
+					generated++;
+					return builder.buildFeature("points." + index++);
+				}
+				
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+}
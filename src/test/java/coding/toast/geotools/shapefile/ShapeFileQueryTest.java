@@ -0,0 +1,128 @@
+package coding.toast.geotools.shapefile;
+
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import coding.toast.geotools.utils.SyntheticShapeFileUtil;
+import org.geotools.data.Query;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.referencing.CRS;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.referencing.FactoryException;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test for {@link ShapeFileUtil#query} : reading only some attributes of the rows matching a filter.<br>
+ * The benchmark row count can be changed with -DshapeFileQuery.features=500000
+ */
+public class ShapeFileQueryTest {
+	
+	private static final long BENCHMARK_FEATURES = Long.getLong("shapeFileQuery.features", 50_000);
+	
+	@Test
+	@DisplayName("Same result as a GeoTools Query on sample.shp")
+	void sampleShapeFileQueryTest() throws IOException, CQLException {
+		String shapeFilePath = "src/test/resources/sample/sample.shp";
+		List<String> propertyNames = List.of("the_geom", "name");
+		
+		for (String cql : List.of("INCLUDE", "id > 1000", "id BETWEEN 0 AND 5000 OR name = 'a'", "name LIKE '%a%'",
+			// the literal is not trimmed : only the first one matches
+			"name = '123'", "name = '123 '", "name = ' 123'")) {
+			SimpleFeatureCollection result = ShapeFileUtil.query(shapeFilePath, "UTF-8", propertyNames, cql);
+			Map<String, SimpleFeature> expected = readWithGeoTools(shapeFilePath, propertyNames, ECQL.toFilter(cql));
+			
+			System.out.println(cql + " : " + result.size() + " features");
+			assertSameFeatures(expected, result);
+		}
+	}
+	
+	@Test
+	@DisplayName("Wide dbf : filter pushdown compared with a GeoTools Query")
+	void wideDbfBenchmark() throws IOException, FactoryException, CQLException {
+		// 40 text attributes of 50 bytes, EUC-KR : about 2KB per dbf row
+		Path shapeFilePath = Files.createTempDirectory("shapefile_query").resolve("wide.shp");
+		SyntheticShapeFileUtil.generate(shapeFilePath, new SyntheticShapeFileUtil.Spec(
+			Point.class, BENCHMARK_FEATURES, 0, 40, 50, CRS.decode("EPSG:5186"), Charset.forName("EUC-KR"), 5186));
+		
+		List<String> propertyNames = List.of("the_geom", "id", "text_1");
+		// about 10% of the rows
+		String cql = "id < " + BENCHMARK_FEATURES / 10 + " AND value >= 0";
+		Filter filter = ECQL.toFilter(cql);
+		
+		// warm up both
+		for (int i = 0; i < 3; i++) {
+			readWithGeoTools(shapeFilePath.toString(), propertyNames, filter);
+			ShapeFileUtil.query(shapeFilePath.toString(), null, propertyNames, filter, feature -> {});
+		}
+		
+		long start = System.nanoTime();
+		Map<String, SimpleFeature> expected = readWithGeoTools(shapeFilePath.toString(), propertyNames, filter);
+		long geoToolsNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		SimpleFeatureCollection result = ShapeFileUtil.query(shapeFilePath.toString(), null, propertyNames, cql);
+		long queryNanos = System.nanoTime() - start;
+		
+		System.out.println("\n===== " + BENCHMARK_FEATURES + " rows, " + expected.size() + " matching =====");
+		System.out.println("GeoTools Query      : " + geoToolsNanos / 1_000_000 + " ms");
+		System.out.println("ShapeFileUtil.query : " + queryNanos / 1_000_000 + " ms ("
+			+ "%.1fx".formatted((double) geoToolsNanos / queryNanos) + ")");
+		assertSameFeatures(expected, result);
+		
+		try (var files = Files.list(shapeFilePath.getParent())) {
+			for (Path file : files.toList()) {
+				Files.deleteIfExists(file);
+			}
+		}
+		Files.deleteIfExists(shapeFilePath.getParent());
+	}
+	
+	/**
+	 * the usual way : Query with property names and a filter
+	 */
+	private static Map<String, SimpleFeature> readWithGeoTools(String shapeFilePath, List<String> propertyNames,
+	                                                           Filter filter) throws IOException {
+		ShapefileDataStore shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(shapeFilePath, "UTF-8");
+		Map<String, SimpleFeature> features = new HashMap<>();
+		try {
+			Query query = new Query(shapeFileDataStore.getTypeNames()[0], filter);
+			query.setPropertyNames(propertyNames);
+			try (SimpleFeatureIterator iterator = shapeFileDataStore.getFeatureSource().getFeatures(query).features()) {
+				while (iterator.hasNext()) {
+					SimpleFeature feature = iterator.next();
+					features.put(feature.getID(), feature);
+				}
+			}
+		} finally {
+			DataStoreUtil.closeDataStores(shapeFileDataStore);
+		}
+		return features;
+	}
+	
+	private static void assertSameFeatures(Map<String, SimpleFeature> expected, SimpleFeatureCollection result) {
+		assertEquals(expected.size(), result.size());
+		try (SimpleFeatureIterator iterator = result.features()) {
+			while (iterator.hasNext()) {
+				SimpleFeature feature = iterator.next();
+				SimpleFeature expectedFeature = expected.get(feature.getID());
+				assertEquals(expectedFeature.getAttributes(), feature.getAttributes(), feature.getID());
+			}
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package coding.toast.geotools.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.geotools.jdbc.JDBCDataStore;
+
+import java.time.Duration;
+
+/**
+ * <h2>Finds the JDBC batch insert size and commit interval with the best rows/sec</h2>
+ * The best values depend on row width, geometry complexity and database latency, so they are measured while writing.<br>
+ * (1) every value is kept for a few commits, and the average rows/sec of those commits is compared with the best so far.<br>
+ * (2) one value at a time is doubled or halved. A change that is not 5% faster is reverted,
+ * and the other value (or the other direction) is tried next. (hill climbing)<br>
+ * (3) when no change helps anymore, the values are logged once and kept. Pin them as defaults with
+ * JDBCDataStoreFactory.BATCH_INSERT_SIZE and the import batch size.<br>
+ * (4) a commit slower than maxCommitLatency halves the commit interval at once, even after settling.<br>
+ * <br>
+ * Caution : the batch insert size is a setting of the whole JDBCDataStore, it also changes other writers of the same DataStore.
+ */
+@Slf4j
+public class AdaptiveBatchTuner implements ShapeFileImportUtil.BatchListener {
+	
+	/**
+	 * commits measured for each tried value
+	 */
+	private static final int COMMITS_PER_PROBE = 3;
+	
+	/**
+	 * a change must be this much faster to be kept
+	 */
+	private static final double MIN_GAIN = 0.05;
+	
+	/**
+	 * failed changes in a row before settling (both values, both directions)
+	 */
+	private static final int MAX_STALLS = 4;
+	
+	private static final int BATCH_INSERT_SIZE = 0;
+	private static final int COMMIT_INTERVAL = 1;
+	
+	/**
+	 * @param minBatchInsertSize smallest JDBC batch insert size (rows per INSERT round trip)
+	 * @param maxBatchInsertSize biggest JDBC batch insert size
+	 * @param minCommitInterval  smallest number of rows per transaction
+	 * @param maxCommitInterval  biggest number of rows per transaction
+	 * @param maxCommitLatency   longest acceptable commit. a long transaction holds locks and loses more work on rollback
+	 */
+	public record Bounds(int minBatchInsertSize, int maxBatchInsertSize,
+	                     int minCommitInterval, int maxCommitInterval, Duration maxCommitLatency) {
+		
+		public Bounds {
+			if (minBatchInsertSize < 1 || minBatchInsertSize > maxBatchInsertSize
+				|| minCommitInterval < 1 || minCommitInterval > maxCommitInterval) {
+				throw new IllegalArgumentException("invalid bounds : " + minBatchInsertSize + "~" + maxBatchInsertSize
+					+ ", " + minCommitInterval + "~" + maxCommitInterval);
+			}
+		}
+		
+		public static Bounds defaults() {
+			return new Bounds(1, 1_000, 500, 50_000, Duration.ofSeconds(5));
+		}
+	}
+	
+	/**
+	 * @param batchInsertSize current JDBC batch insert size
+	 * @param commitInterval  current rows per transaction
+	 * @param rowsPerSecond   best measured throughput
+	 * @param settled         whether tuning is finished
+	 */
+	public record Settings(int batchInsertSize, int commitInterval, double rowsPerSecond, boolean settled) {
+	}
+	
+	private final JDBCDataStore jdbcDataStore;
+	private final int[] min;
+	private final int[] max;
+	private final long maxCommitLatencyNanos;
+	
+	private final int[] values = new int[2];
+	private final int[] previousValues = new int[2];
+	private final int[] directions = {1, 1};
+	
+	private int probing = -1;
+	private int nextProbe = COMMIT_INTERVAL;
+	private int stalls;
+	private double baseline = Double.NaN;
+	private boolean settled;
+	
+	private long windowRows;
+	private long windowNanos;
+	private int windowCommits;
+	
+	/**
+	 * @param jdbcDataStore         DataStore whose batch insert size is tuned. null for other DataStores (only the commit interval is tuned)
+	 * @param bounds                allowed values
+	 * @param initialCommitInterval commit interval to start with (ex: 1000)
+	 */
+	public AdaptiveBatchTuner(JDBCDataStore jdbcDataStore, Bounds bounds, int initialCommitInterval) {
+		this.jdbcDataStore = jdbcDataStore;
+		this.maxCommitLatencyNanos = bounds.maxCommitLatency().toNanos();
+		if (jdbcDataStore != null) {
+			this.min = new int[]{bounds.minBatchInsertSize(), bounds.minCommitInterval()};
+			this.max = new int[]{bounds.maxBatchInsertSize(), bounds.maxCommitInterval()};
+			values[BATCH_INSERT_SIZE] = jdbcDataStore.getBatchInsertSize();
+		} else {
+			// nothing to tune, the batch insert size stays 1
+			this.min = new int[]{1, bounds.minCommitInterval()};
+			this.max = new int[]{1, bounds.maxCommitInterval()};
+			values[BATCH_INSERT_SIZE] = 1;
+		}
+		set(COMMIT_INTERVAL, initialCommitInterval);
+		set(BATCH_INSERT_SIZE, values[BATCH_INSERT_SIZE]);
+		apply();
+	}
+	
+	/**
+	 * rows to write in the next transaction
+	 */
+	public synchronized int getCommitInterval() {
+		return values[COMMIT_INTERVAL];
+	}
+	
+	public synchronized Settings getSettings() {
+		return new Settings(values[BATCH_INSERT_SIZE], values[COMMIT_INTERVAL],
+			Double.isNaN(baseline) ? 0 : baseline, settled);
+	}
+	
+	/**
+	 * Called after every commit with its size and latency.
+	 */
+	@Override
+	public synchronized void batchWritten(int featureCount, long elapsedNanos) {
+		if (elapsedNanos > maxCommitLatencyNanos && values[COMMIT_INTERVAL] > min[COMMIT_INTERVAL]) {
+			log.info("commit of {} rows took {} ms, commit interval is halved", featureCount, elapsedNanos / 1_000_000);
+			set(COMMIT_INTERVAL, values[COMMIT_INTERVAL] / 2);
+			apply();
+			if (!settled) {
+				// measure again from the new values
+				probing = -1;
+				baseline = Double.NaN;
+			}
+			resetWindow();
+			return;
+		}
+		if (settled) {
+			return;
+		}
+		
+		windowRows += featureCount;
+		windowNanos += elapsedNanos;
+		if (++windowCommits < COMMITS_PER_PROBE) {
+			return;
+		}
+		double rowsPerSecond = windowRows * 1_000_000_000.0 / Math.max(1, windowNanos);
+		resetWindow();
+		
+		if (probing < 0) {
+			baseline = rowsPerSecond;
+		} else if (rowsPerSecond > baseline * (1 + MIN_GAIN)) {
+			// keep going the same way
+			log.debug("{} -> {} : {} rows/s (better)", name(probing), values[probing], (long) rowsPerSecond);
+			baseline = rowsPerSecond;
+			stalls = 0;
+			nextProbe = probing;
+		} else {
+			log.debug("{} -> {} : {} rows/s (reverted)", name(probing), values[probing], (long) rowsPerSecond);
+			values[BATCH_INSERT_SIZE] = previousValues[BATCH_INSERT_SIZE];
+			values[COMMIT_INTERVAL] = previousValues[COMMIT_INTERVAL];
+			stall(probing);
+		}
+		probe();
+		apply();
+	}
+	
+	/**
+	 * change the next value, or settle when no change is possible
+	 */
+	private void probe() {
+		probing = -1;
+		while (stalls < MAX_STALLS) {
+			int parameter = nextProbe;
+			int current = values[parameter];
+			int candidate = directions[parameter] > 0 ? current * 2 : current / 2;
+			previousValues[BATCH_INSERT_SIZE] = values[BATCH_INSERT_SIZE];
+			previousValues[COMMIT_INTERVAL] = values[COMMIT_INTERVAL];
+			set(parameter, candidate);
+			if (values[parameter] != current) {
+				probing = parameter;
+				return;
+			}
+			// already at the bound
+			stall(parameter);
+		}
+		settled = true;
+		log.info("settled : batchInsertSize = {}, commitInterval = {}, {} rows/s",
+			values[BATCH_INSERT_SIZE], values[COMMIT_INTERVAL], (long) baseline);
+	}
+	
+	private void stall(int parameter) {
+		directions[parameter] = -directions[parameter];
+		nextProbe = 1 - parameter;
+		stalls++;
+	}
+	
+	/**
+	 * set a value within its bounds. the batch insert size is never bigger than the commit interval.
+	 */
+	private void set(int parameter, int value) {
+		values[parameter] = Math.max(min[parameter], Math.min(max[parameter], value));
+		if (parameter == COMMIT_INTERVAL || values[BATCH_INSERT_SIZE] > values[COMMIT_INTERVAL]) {
+			values[BATCH_INSERT_SIZE] = Math.max(min[BATCH_INSERT_SIZE],
+				Math.min(values[BATCH_INSERT_SIZE], values[COMMIT_INTERVAL]));
+		}
+	}
+	
+	private void apply() {
+		if (jdbcDataStore != null) {
+			// read by the next JDBC insert writer, which is created for every addFeatures call
+			jdbcDataStore.setBatchInsertSize(values[BATCH_INSERT_SIZE]);
+		}
+	}
+	
+	private void resetWindow() {
+		windowRows = 0;
+		windowNanos = 0;
+		windowCommits = 0;
+	}
+	
+	private static String name(int parameter) {
+		return parameter == BATCH_INSERT_SIZE ? "batchInsertSize" : "commitInterval";
+	}
+}
@@ -0,0 +1,90 @@
+package coding.toast.geotools.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.jdbc.JDBCDataStore;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <h2>Writes features to a SimpleFeatureStore, committing every N features where N is tuned while writing</h2>
+ * A replacement of the fixed BATCH_SIZE loop of ShapeFileToDatabaseTableAppendingTest.<br>
+ * Every commit is measured by {@link AdaptiveBatchTuner}, which also tunes the JDBC batch insert size
+ * when the store belongs to a JDBCDataStore (PostGIS).<br>
+ * The settled values are logged on {@link #close()}.
+ */
+@Slf4j
+public class AdaptiveFeatureWriter implements Closeable {
+	
+	/**
+	 * the fixed BATCH_SIZE of ShapeFileToDatabaseTableAppendingTest, tuning starts from here
+	 */
+	public static final int INITIAL_COMMIT_INTERVAL = 1_000;
+	
+	private final SimpleFeatureStore featureStore;
+	private final AdaptiveBatchTuner tuner;
+	private List<SimpleFeature> buffer;
+	private long writtenCount;
+	
+	/**
+	 * @param featureStore target store (ex: (SimpleFeatureStore) postGisDataStore.getFeatureSource("sample"))
+	 * @param bounds       allowed batch insert sizes and commit intervals
+	 */
+	public AdaptiveFeatureWriter(SimpleFeatureStore featureStore, AdaptiveBatchTuner.Bounds bounds) {
+		this.featureStore = featureStore;
+		this.tuner = new AdaptiveBatchTuner(
+			featureStore.getDataStore() instanceof JDBCDataStore jdbcDataStore ? jdbcDataStore : null,
+			bounds, INITIAL_COMMIT_INTERVAL);
+		this.buffer = new ArrayList<>(tuner.getCommitInterval());
+	}
+	
+	/**
+	 * Add a feature. It is committed with the others once the current commit interval is reached.
+	 * @param feature feature of the store schema
+	 * @throws IOException occurs when the commit fails. the features of that commit are rolled back.
+	 */
+	public void write(SimpleFeature feature) throws IOException {
+		buffer.add(feature);
+		if (buffer.size() >= tuner.getCommitInterval()) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Commit the buffered features now.
+	 */
+	public void flush() throws IOException {
+		if (buffer.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		int written = ShapeFileImportUtil.writeBatch(featureStore, buffer);
+		tuner.batchWritten(written, System.nanoTime() - start);
+		writtenCount += written;
+		buffer = new ArrayList<>(tuner.getCommitInterval());
+	}
+	
+	public long getWrittenCount() {
+		return writtenCount;
+	}
+	
+	public AdaptiveBatchTuner.Settings getSettings() {
+		return tuner.getSettings();
+	}
+	
+	/**
+	 * Commit the rest and log the values to pin as defaults.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		AdaptiveBatchTuner.Settings settings = tuner.getSettings();
+		log.info("{} features written. batchInsertSize = {}, commitInterval = {}, {} rows/s{}",
+			writtenCount, settings.batchInsertSize(), settings.commitInterval(), (long) settings.rowsPerSecond(),
+			settings.settled() ? "" : " (not settled yet, write more features to finish tuning)");
+	}
+}
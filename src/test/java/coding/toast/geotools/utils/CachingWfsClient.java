@@ -0,0 +1,472 @@
+package coding.toast.geotools.utils;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.wfs.WFSDataStoreFactory;
+import org.geotools.data.wfs.internal.parsers.XmlSimpleFeatureParser;
+import org.geotools.feature.NameImpl;
+import org.geotools.wfs.GML;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <h2>WFS client which caches every response on disk</h2>
+ * GetCapabilities, DescribeFeatureType and GetFeature pages are stored in the cache directory.<br>
+ * (1) a cached response younger than the TTL is used without any request.<br>
+ * (2) an expired response is revalidated with its ETag (If-None-Match), a 304 response just renews it.<br>
+ * (3) when a GetFeature page is opened, the next startIndex page is downloaded in the background while the current one is read.
+ * A page whose numberOfFeatures (WFS 1.1) or numberReturned (WFS 2.0) is less than the page size is the last one,
+ * so nothing is requested past the end. Without those attributes one extra (empty) page is requested.<br>
+ * (4) every request gives up after {@link #REQUEST_TIMEOUT}, and an ows:ExceptionReport answered with HTTP 200 is never cached.<br>
+ * <br>
+ * Pages are parsed in a streaming way with the feature type of the cached DescribeFeatureType document
+ * (XmlSimpleFeatureParser of gt-wfs-ng), so only one feature is held in memory at a time,
+ * and the schemaLocation written in every page is never downloaded again.<br>
+ * Requests are made with WFS 1.1.0 + maxFeatures/startIndex, which GeoServer and most servers support for paging.
+ */
+public class CachingWfsClient implements Closeable {
+	
+	private static final String WFS_VERSION = "1.1.0";
+	
+	/**
+	 * how long a request (or the wait for a prefetched page) may take
+	 */
+	public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+	
+	private final String serviceUrl;
+	private final Path cacheDirectory;
+	private final Duration ttl;
+	private final HttpClient httpClient;
+	private final ExecutorService prefetchExecutor;
+	
+	/**
+	 * the same cache entry must not be downloaded twice at the same time (prefetch thread vs reading thread).<br>
+	 * Cache keys share a fixed number of locks, so nothing has to be removed when an entry is done.
+	 */
+	private final Object[] entryLocks = new Object[64];
+	
+	/**
+	 * @param serviceUrl     WFS endpoint without query string (ex: http://localhost:8080/geoserver/wfs)
+	 * @param cacheDirectory directory where responses are cached
+	 * @param ttl            how long a cached response is used without asking the server
+	 * @throws IOException occurs when the cache directory can't be created
+	 */
+	public CachingWfsClient(String serviceUrl, Path cacheDirectory, Duration ttl) throws IOException {
+		this.serviceUrl = Objects.requireNonNull(serviceUrl, "serviceUrl argument is required!");
+		this.cacheDirectory = Files.createDirectories(cacheDirectory);
+		this.ttl = Objects.requireNonNull(ttl, "ttl argument is required!");
+		this.httpClient = HttpClient.newBuilder()
+			.connectTimeout(Duration.ofSeconds(10))
+			.followRedirects(HttpClient.Redirect.NORMAL)
+			.build();
+		this.prefetchExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "wfs-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Arrays.setAll(entryLocks, i -> new Object());
+	}
+	
+	/**
+	 * @return cached GetCapabilities document
+	 */
+	public Path getCapabilities() throws IOException {
+		return fetch(requestUrl("GetCapabilities", null));
+	}
+	
+	/**
+	 * @param typeName feature type name (ex: topp:states)
+	 * @return cached DescribeFeatureType (XML Schema) document
+	 */
+	public Path describeFeatureType(String typeName) throws IOException {
+		return fetch(requestUrl("DescribeFeatureType", typeName));
+	}
+	
+	/**
+	 * @param typeName feature type name (ex: topp:states)
+	 * @return feature type decoded from the cached DescribeFeatureType document
+	 */
+	public SimpleFeatureType getFeatureType(String typeName) throws IOException {
+		Path schema = describeFeatureType(typeName);
+		// the cached body is decoded from the disk, nothing is requested here
+		return new GML(GML.Version.WFS1_1).decodeSimpleFeatureType(
+			schema.toUri().toURL(),
+			new NameImpl(readTargetNamespace(schema), localName(typeName)));
+	}
+	
+	/**
+	 * @param typeName   feature type name
+	 * @param startIndex index of the first feature of the page
+	 * @param pageSize   number of features of the page
+	 * @return cached GetFeature response (GML3)
+	 */
+	public Path getFeaturePage(String typeName, int startIndex, int pageSize) throws IOException {
+		return fetch(requestUrl("GetFeature", typeName)
+			+ "&maxFeatures=" + pageSize
+			+ "&startIndex=" + startIndex);
+	}
+	
+	/**
+	 * Read every feature of a feature type, page by page.<br>
+	 * While a page is read, the next page is downloaded in the background.
+	 * @param typeName feature type name
+	 * @param pageSize number of features per GetFeature request
+	 * @return iterator over all features. must be closed!
+	 */
+	public SimpleFeatureIterator features(String typeName, int pageSize) throws IOException {
+		return new PagedFeatureIterator(typeName, pageSize);
+	}
+	
+	/**
+	 * Delete cached responses older than maxAge.
+	 * @param maxAge maximum age of the cached responses to keep
+	 * @return number of deleted responses
+	 */
+	public int evict(Duration maxAge) throws IOException {
+		Instant threshold = Instant.now().minus(maxAge);
+		int evicted = 0;
+		try (var metaFiles = Files.newDirectoryStream(cacheDirectory, "*.properties")) {
+			for (Path metaFile : metaFiles) {
+				CacheEntry entry = CacheEntry.read(metaFile);
+				if (entry.fetchedAt().isBefore(threshold)) {
+					String key = metaFile.getFileName().toString().replace(".properties", "");
+					Files.deleteIfExists(cacheDirectory.resolve(key + ".body"));
+					Files.deleteIfExists(metaFile);
+					evicted++;
+				}
+			}
+		}
+		return evicted;
+	}
+	
+	@Override
+	public void close() {
+		prefetchExecutor.shutdownNow();
+	}
+	
+	private String requestUrl(String request, String typeName) {
+		StringBuilder url = new StringBuilder(serviceUrl)
+			.append(serviceUrl.contains("?") ? "&" : "?")
+			.append("service=WFS&version=").append(WFS_VERSION)
+			.append("&request=").append(request);
+		if (typeName != null) {
+			url.append("&typeName=").append(URLEncoder.encode(typeName, StandardCharsets.UTF_8));
+		}
+		return url.toString();
+	}
+	
+	/**
+	 * Return the cached response of the url, downloading (or revalidating) it first when needed.
+	 */
+	private Path fetch(String url) throws IOException {
+		String key = cacheKey(url);
+		Path bodyFile = cacheDirectory.resolve(key + ".body");
+		Path metaFile = cacheDirectory.resolve(key + ".properties");
+		
+		synchronized (entryLocks[Math.floorMod(key.hashCode(), entryLocks.length)]) {
+			CacheEntry cached = Files.exists(metaFile) && Files.exists(bodyFile) ? CacheEntry.read(metaFile) : null;
+			if (cached != null && cached.fetchedAt().plus(ttl).isAfter(Instant.now())) {
+				return bodyFile;
+			}
+			
+			HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).timeout(REQUEST_TIMEOUT).GET();
+			if (cached != null && cached.etag() != null) {
+				request.header("If-None-Match", cached.etag());
+			}
+			
+			// write to a temp file first, so a broken download never replaces a good cached response
+			Path tempFile = Files.createTempFile(cacheDirectory, key, ".tmp");
+			try {
+				HttpResponse<Path> response = httpClient.send(request.build(), responseInfo ->
+					responseInfo.statusCode() == 200
+						? HttpResponse.BodySubscribers.ofFile(tempFile)
+						: HttpResponse.BodySubscribers.replacing(tempFile));
+				
+				if (response.statusCode() == 304 && cached != null) {
+					new CacheEntry(cached.etag(), Instant.now()).write(metaFile);
+					return bodyFile;
+				}
+				if (response.statusCode() != 200) {
+					throw new IOException("WFS request failed with HTTP " + response.statusCode() + " : " + url);
+				}
+				// some servers answer an error with HTTP 200, it must not be served from the cache until the TTL expires
+				checkNotExceptionReport(tempFile, url);
+				
+				Files.move(tempFile, bodyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				new CacheEntry(response.headers().firstValue("ETag").orElse(null), Instant.now()).write(metaFile);
+				return bodyFile;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("WFS request interrupted : " + url, e);
+			} finally {
+				Files.deleteIfExists(tempFile);
+			}
+		}
+	}
+	
+	private static String localName(String typeName) {
+		return typeName.substring(typeName.indexOf(':') + 1);
+	}
+	
+	/**
+	 * targetNamespace attribute of a XML Schema document (= namespace of the feature elements)
+	 */
+	private static String readTargetNamespace(Path schema) throws IOException {
+		return readRootElement(schema, reader -> reader.getAttributeValue(null, "targetNamespace"));
+	}
+	
+	/**
+	 * numberReturned (WFS 2.0) or numberOfFeatures (WFS 1.1) attribute of a GetFeature response
+	 * @return null when the server doesn't write it
+	 */
+	private static Integer readNumberOfFeatures(Path page) throws IOException {
+		return readRootElement(page, reader -> {
+			String numberReturned = reader.getAttributeValue(null, "numberReturned");
+			String numberOfFeatures = numberReturned != null ? numberReturned : reader.getAttributeValue(null, "numberOfFeatures");
+			try {
+				return numberOfFeatures == null ? null : Integer.valueOf(numberOfFeatures.trim());
+			} catch (NumberFormatException e) {
+				return null; // ex: numberReturned="unknown"
+			}
+		});
+	}
+	
+	/**
+	 * @throws IOException when the response is an ows:ExceptionReport (or a WMS style ServiceExceptionReport)
+	 */
+	private static void checkNotExceptionReport(Path response, String url) throws IOException {
+		readRootElement(response, reader -> {
+			if (!reader.getLocalName().endsWith("ExceptionReport")) {
+				return null;
+			}
+			StringBuilder message = new StringBuilder();
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamReader.CHARACTERS && !reader.isWhiteSpace()) {
+					message.append(message.isEmpty() ? "" : " ").append(reader.getText().trim());
+				}
+			}
+			throw new IOException("WFS server returned an exception report (" + message + ") : " + url);
+		});
+	}
+	
+	private static <T> T readRootElement(Path xml, RootElementReader<T> rootElementReader) throws IOException {
+		XMLInputFactory factory = XMLInputFactory.newFactory();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		try (InputStream in = Files.newInputStream(xml)) {
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			try {
+				reader.nextTag();
+				return rootElementReader.read(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Fail to read WFS response : " + xml, e);
+		}
+	}
+	
+	/**
+	 * reads what it needs from a XMLStreamReader positioned on the root element
+	 */
+	@FunctionalInterface
+	private interface RootElementReader<T> {
+		T read(XMLStreamReader reader) throws XMLStreamException, IOException;
+	}
+	
+	private static String cacheKey(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported by this JVM!", e);
+		}
+	}
+	
+	/**
+	 * cache meta info stored next to each cached response body (key.properties)
+	 */
+	private record CacheEntry(String etag, Instant fetchedAt) {
+		
+		static CacheEntry read(Path metaFile) throws IOException {
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(metaFile)) {
+				properties.load(in);
+			}
+			return new CacheEntry(
+				properties.getProperty("etag"),
+				Instant.ofEpochMilli(Long.parseLong(properties.getProperty("fetchedAt", "0"))));
+		}
+		
+		void write(Path metaFile) throws IOException {
+			Properties properties = new Properties();
+			if (etag != null) {
+				properties.setProperty("etag", etag);
+			}
+			properties.setProperty("fetchedAt", String.valueOf(fetchedAt.toEpochMilli()));
+			try (OutputStream out = Files.newOutputStream(metaFile)) {
+				properties.store(out, null);
+			}
+		}
+	}
+	
+	/**
+	 * Iterates features page by page.<br>
+	 * The last page is the first one which has less features than pageSize.
+	 * Unless the page says so (numberOfFeatures/numberReturned), the download of the following page is started
+	 * on the prefetch executor as soon as a page is opened.
+	 */
+	private class PagedFeatureIterator implements SimpleFeatureIterator {
+		
+		private final String typeName;
+		private final int pageSize;
+		private final SimpleFeatureType featureType;
+		private final QName featureElementName;
+		
+		private int pageStartIndex;
+		private int readInPage;
+		private InputStream pageInput;
+		private XmlSimpleFeatureParser pageParser;
+		private SimpleFeature parsedFeature;
+		private Future<Path> nextPage;
+		
+		PagedFeatureIterator(String typeName, int pageSize) throws IOException {
+			this.typeName = typeName;
+			this.pageSize = pageSize;
+			this.featureType = getFeatureType(typeName);
+			this.featureElementName = new QName(featureType.getName().getNamespaceURI(), localName(typeName));
+			openPage(getFeaturePage(typeName, 0, pageSize));
+		}
+		
+		@Override
+		public boolean hasNext() {
+			if (pageParser == null) {
+				return false; // closed
+			}
+			try {
+				while (parsedFeature == null && (parsedFeature = pageParser.parse()) == null) {
+					if (nextPage == null || readInPage < pageSize) {
+						return false;
+					}
+					closePage();
+					pageStartIndex += pageSize;
+					openPage(awaitNextPage());
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return true;
+		}
+		
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			SimpleFeature feature = parsedFeature;
+			parsedFeature = null;
+			readInPage++;
+			return feature;
+		}
+		
+		@Override
+		public void close() {
+			// the page is not needed anymore. the interrupt aborts a running download, nothing is waited for.
+			if (nextPage != null) {
+				nextPage.cancel(true);
+				nextPage = null;
+			}
+			try {
+				closePage();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		private void prefetchNextPage() {
+			int nextStartIndex = pageStartIndex + pageSize;
+			nextPage = prefetchExecutor.submit(() -> getFeaturePage(typeName, nextStartIndex, pageSize));
+		}
+		
+		private Path awaitNextPage() throws IOException {
+			try {
+				return nextPage.get(REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException cause ? cause : new IOException("Fail to read WFS page!", e.getCause());
+			} catch (TimeoutException e) {
+				nextPage.cancel(true);
+				throw new IOException("WFS page (startIndex=" + pageStartIndex + ") is not downloaded within " + REQUEST_TIMEOUT, e);
+			} catch (InterruptedException e) {
+				nextPage.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for a WFS page");
+			} finally {
+				nextPage = null;
+			}
+		}
+		
+		private void openPage(Path page) throws IOException {
+			readInPage = 0;
+			nextPage = null;
+			Integer numberOfFeatures = readNumberOfFeatures(page);
+			if (numberOfFeatures == null || numberOfFeatures >= pageSize) {
+				// there may be another page, download it while this one is read
+				prefetchNextPage();
+			}
+			pageInput = Files.newInputStream(page);
+			try {
+				// coordinates are read as (x, y), same as the "org.geotools.referencing.forceXY" system property
+				pageParser = new XmlSimpleFeatureParser(pageInput, featureType, featureElementName,
+					WFSDataStoreFactory.AXIS_ORDER_EAST_NORTH);
+			} catch (Exception e) {
+				pageInput.close();
+				throw new IOException("Fail to parse WFS GetFeature response : " + page, e);
+			}
+		}
+		
+		private void closePage() throws IOException {
+			parsedFeature = null;
+			if (pageParser != null) {
+				pageParser.close();
+				pageParser = null;
+			}
+			if (pageInput != null) {
+				pageInput.close();
+				pageInput = null;
+			}
+		}
+	}
+}
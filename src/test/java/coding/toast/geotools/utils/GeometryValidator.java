@@ -0,0 +1,352 @@
+package coding.toast.geotools.utils;
+
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Lineal;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Puntal;
+import org.locationtech.jts.geom.util.GeometryFixer;
+import org.locationtech.jts.operation.valid.IsValidOp;
+import org.locationtech.jts.operation.valid.TopologyValidationError;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h2>Geometry validation (and repair) before features are loaded</h2>
+ * PostGIS accepts invalid geometries, but ST_Intersects, ST_Union ... fail or return wrong results on them later.
+ * So they are checked while importing, see {@link ShapeFileImportUtil}.<br>
+ * (1) every geometry is checked with JTS IsValidOp. A valid geometry costs nothing more than this check.<br>
+ * (2) an invalid geometry is repaired with GeometryFixer, and fitted to the geometry type of the table
+ * (ex: a bow-tie Polygon becomes a MultiPolygon, which can't go to a Polygon column).<br>
+ * (3) features which can't be repaired are not loaded. They are written to a reject ShapeFile with the reason.
+ * A ShapeFile holds one geometry type, so a reject which doesn't fit the column type goes to its own file
+ * (name_point.shp, name_line.shp or name_polygon.shp).<br>
+ * (4) the number of repaired / rejected features is counted per {@link TopologyValidationError} error type.
+ * See {@link #getReport()}.<br>
+ * <br>
+ * {@link #validate(SimpleFeature)} is thread safe, so a batch can be validated with a parallel stream.
+ * The reject ShapeFiles are written by {@link #writeRejects()} on one thread only.
+ */
+public class GeometryValidator implements Closeable {
+	
+	/**
+	 * dbf field for the reject reason (10 characters at most)
+	 */
+	public static final String REASON_FIELD = "rej_reason";
+	
+	private final Path rejectShapeFilePath;
+	private final Charset rejectEncoding;
+	private final boolean repair;
+	
+	private final LongAdder checked = new LongAdder();
+	private final LongAdder valid = new LongAdder();
+	private final Map<Integer, LongAdder> repaired = new ConcurrentHashMap<>();
+	private final Map<Integer, LongAdder> rejected = new ConcurrentHashMap<>();
+	private final Queue<Reject> pendingRejects = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * geometry binding -> reject ShapeFile, in creation order
+	 */
+	private final Map<Class<?>, RejectShapeFile> rejectShapeFiles = new LinkedHashMap<>();
+	
+	/**
+	 * @param checked          number of validated features
+	 * @param valid            features which were valid as they were
+	 * @param repaired         error type (TopologyValidationError.SELF_INTERSECTION ...) -> number of repaired features
+	 * @param rejected         error type -> number of rejected features
+	 * @param rejectShapeFiles reject ShapeFiles, one per geometry type. empty when nothing was rejected
+	 */
+	public record ValidationReport(long checked, long valid, Map<Integer, Long> repaired,
+	                               Map<Integer, Long> rejected, List<Path> rejectShapeFiles) {
+		
+		public long repairedCount() {
+			return repaired.values().stream().mapToLong(Long::longValue).sum();
+		}
+		
+		public long rejectedCount() {
+			return rejected.values().stream().mapToLong(Long::longValue).sum();
+		}
+		
+		/**
+		 * @return the counts with the error message as key, for printing. (ex: {Self-intersection=2})
+		 */
+		public static Map<String, Long> byMessage(Map<Integer, Long> counts) {
+			Map<String, Long> byMessage = new TreeMap<>();
+			counts.forEach((errorType, count) -> byMessage.put(TopologyValidationError.errMsg[errorType], count));
+			return byMessage;
+		}
+	}
+	
+	private record Reject(SimpleFeature feature, String reason) {
+	}
+	
+	/**
+	 * Validate and repair, rejects are written in UTF-8.
+	 * @param rejectShapeFilePath .shp path of the reject ShapeFile. only created when a feature is rejected
+	 */
+	public GeometryValidator(Path rejectShapeFilePath) {
+		this(rejectShapeFilePath, StandardCharsets.UTF_8, true);
+	}
+	
+	/**
+	 * @param rejectShapeFilePath .shp path of the reject ShapeFile. only created when a feature is rejected
+	 * @param rejectEncoding      dbf encoding of the reject ShapeFile, also written in the .cpg file
+	 * @param repair              false = every invalid feature is rejected without trying to repair
+	 */
+	public GeometryValidator(Path rejectShapeFilePath, Charset rejectEncoding, boolean repair) {
+		this.rejectShapeFilePath = rejectShapeFilePath;
+		this.rejectEncoding = rejectEncoding;
+		this.repair = repair;
+	}
+	
+	/**
+	 * Validate the default geometry of the feature, and replace it with the repaired one when needed.<br>
+	 * Features without geometry are passed as they are. (the column may be nullable)
+	 * @param feature feature to load. The geometry must already be in the table CRS.
+	 * @return true = load the feature, false = rejected (will be written by {@link #writeRejects()})
+	 */
+	public boolean validate(SimpleFeature feature) {
+		checked.increment();
+		Geometry geometry = (Geometry) feature.getDefaultGeometry();
+		if (geometry == null) {
+			valid.increment();
+			return true;
+		}
+		
+		TopologyValidationError error = new IsValidOp(geometry).getValidationError();
+		if (error == null) {
+			valid.increment();
+			return true;
+		}
+		
+		// the location is only written to the reject file
+		int reason = error.getErrorType();
+		if (!repair) {
+			return reject(feature, reason, error.toString());
+		}
+		
+		Geometry fixed;
+		try {
+			fixed = GeometryFixer.fix(geometry);
+		} catch (RuntimeException e) {
+			return reject(feature, reason, error + " / repair failed : " + e.getMessage());
+		}
+		if (fixed.isEmpty()) {
+			return reject(feature, reason, error + " / collapsed to empty");
+		}
+		
+		Class<?> binding = feature.getFeatureType().getGeometryDescriptor().getType().getBinding();
+		Geometry fitted = fitToBinding(fixed, binding);
+		if (fitted == null) {
+			return reject(feature, reason, error + " / repaired to " + fixed.getGeometryType()
+				+ " (" + fixed.getNumGeometries() + " parts), column is " + binding.getSimpleName());
+		}
+		fitted.setSRID(geometry.getSRID());
+		fitted.setUserData(geometry.getUserData());
+		feature.setDefaultGeometry(fitted);
+		repaired.computeIfAbsent(reason, key -> new LongAdder()).increment();
+		return true;
+	}
+	
+	/**
+	 * Write the features rejected so far to the reject ShapeFiles. (created with the first reject of each geometry type)<br>
+	 * Must not be called by more than one thread at the same time.
+	 * @throws IOException occurs when writing fails
+	 */
+	public void writeRejects() throws IOException {
+		Reject reject;
+		while ((reject = pendingRejects.poll()) != null) {
+			SimpleFeatureType featureType = reject.feature().getFeatureType();
+			Geometry geometry = (Geometry) reject.feature().getDefaultGeometry();
+			Class<?> binding = toShapeFileBinding(featureType.getGeometryDescriptor().getType().getBinding(), geometry);
+			
+			RejectShapeFile rejectShapeFile = rejectShapeFiles.get(binding);
+			if (rejectShapeFile == null) {
+				rejectShapeFile = new RejectShapeFile(featureType, binding, rejectShapeFilePath(featureType, binding));
+				rejectShapeFiles.put(binding, rejectShapeFile);
+			}
+			
+			SimpleFeature output = rejectShapeFile.writer.next();
+			Geometry fitted = fitToBinding(geometry, binding);
+			output.setDefaultGeometry(fitted);
+			// same attribute order as ShapeFileExportUtil.createShapeFileSchema, the geometry is the first one
+			int index = 1;
+			for (AttributeDescriptor descriptor : featureType.getAttributeDescriptors()) {
+				if (!(descriptor instanceof GeometryDescriptor)) {
+					output.setAttribute(index++, reject.feature().getAttribute(descriptor.getLocalName()));
+				}
+			}
+			// only a GeometryCollection (not a Multi* type) gets here, ShapeFile has no type for it
+			output.setAttribute(REASON_FIELD, fitted == null && geometry != null
+				? reject.reason() + " / " + geometry.getGeometryType() + " not written" : reject.reason());
+			rejectShapeFile.writer.write();
+		}
+	}
+	
+	/**
+	 * @return counts so far
+	 */
+	public ValidationReport getReport() {
+		List<Path> rejectShapeFilePaths = new ArrayList<>();
+		rejectShapeFiles.values().forEach(rejectShapeFile -> rejectShapeFilePaths.add(rejectShapeFile.path));
+		return new ValidationReport(checked.sum(), valid.sum(), snapshot(repaired), snapshot(rejected),
+			rejectShapeFilePaths);
+	}
+	
+	/**
+	 * Write the remaining rejects and close the reject ShapeFiles.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			writeRejects();
+		} finally {
+			IOException closeFailure = null;
+			for (RejectShapeFile rejectShapeFile : rejectShapeFiles.values()) {
+				try {
+					rejectShapeFile.close();
+				} catch (IOException e) {
+					closeFailure = e;
+				}
+			}
+			if (closeFailure != null) {
+				throw closeFailure;
+			}
+		}
+	}
+	
+	private boolean reject(SimpleFeature feature, int reason, String detail) {
+		rejected.computeIfAbsent(reason, key -> new LongAdder()).increment();
+		// dbf character fields are 254 bytes at most
+		pendingRejects.add(new Reject(feature, detail.length() > 200 ? detail.substring(0, 200) : detail));
+		return false;
+	}
+	
+	/**
+	 * the given path for rejects of the column type, name_point.shp / name_line.shp / name_polygon.shp for the others
+	 */
+	private Path rejectShapeFilePath(SimpleFeatureType featureType, Class<?> binding) {
+		if (binding == featureType.getGeometryDescriptor().getType().getBinding()) {
+			return rejectShapeFilePath;
+		}
+		String suffix = binding == MultiPoint.class ? "_point" : binding == MultiLineString.class ? "_line" : "_polygon";
+		return rejectShapeFilePath.resolveSibling(
+			rejectShapeFilePath.getFileName().toString().replaceFirst("\\.shp$", suffix + ".shp"));
+	}
+	
+	/**
+	 * The column type when the geometry fits it. Otherwise (or for the abstract "Geometry" type, which ShapeFile can't store)
+	 * the multi type of the geometry. (same as ShapeFileExportUtil)
+	 */
+	private static Class<?> toShapeFileBinding(Class<?> binding, Geometry geometry) {
+		if (binding != Geometry.class && binding != GeometryCollection.class && fitToBinding(geometry, binding) != null) {
+			return binding;
+		}
+		if (geometry instanceof Puntal) {
+			return MultiPoint.class;
+		} else if (geometry instanceof Lineal) {
+			return MultiLineString.class;
+		}
+		return MultiPolygon.class;
+	}
+	
+	/**
+	 * Fit the geometry to the column type. Polygon -> MultiPolygon, and a MultiPolygon with one part -> Polygon.
+	 * @return null when it doesn't fit
+	 */
+	static Geometry fitToBinding(Geometry geometry, Class<?> binding) {
+		if (geometry == null || binding.isInstance(geometry)) {
+			return geometry;
+		}
+		if (binding == MultiPolygon.class && geometry instanceof Polygon polygon) {
+			return geometry.getFactory().createMultiPolygon(new Polygon[]{polygon});
+		} else if (binding == MultiLineString.class && geometry instanceof LineString lineString) {
+			return geometry.getFactory().createMultiLineString(new LineString[]{lineString});
+		} else if (binding == MultiPoint.class && geometry instanceof Point point) {
+			return geometry.getFactory().createMultiPoint(new Point[]{point});
+		}
+		if (geometry instanceof GeometryCollection && geometry.getNumGeometries() == 1
+			&& binding.isInstance(geometry.getGeometryN(0))) {
+			return geometry.getGeometryN(0);
+		}
+		// ex: a bow-tie in a Polygon column, or a polygon which collapsed to a line
+		return null;
+	}
+	
+	private static Map<Integer, Long> snapshot(Map<Integer, LongAdder> counts) {
+		Map<Integer, Long> snapshot = new TreeMap<>();
+		counts.forEach((reason, count) -> snapshot.put(reason, count.sum()));
+		return snapshot;
+	}
+	
+	/**
+	 * One reject ShapeFile (.shp/.shx/.dbf/.prj/.cpg) and its open FeatureWriter
+	 */
+	private class RejectShapeFile {
+		
+		private final Path path;
+		private final ShapefileDataStore dataStore;
+		private final FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+		
+		RejectShapeFile(SimpleFeatureType featureType, Class<?> binding, Path path) throws IOException {
+			this.path = path;
+			
+			SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+			builder.init(ShapeFileExportUtil.createShapeFileSchema(featureType, binding));
+			builder.setName(path.getFileName().toString().replaceFirst("\\.shp$", ""));
+			builder.length(254).add(REASON_FIELD, String.class);
+			
+			Map<String, Serializable> params = new HashMap<>();
+			params.put(ShapefileDataStoreFactory.URLP.key, path.toUri().toURL());
+			params.put(ShapefileDataStoreFactory.CREATE_SPATIAL_INDEX.key, Boolean.FALSE);
+			params.put(ShapefileDataStoreFactory.DBFCHARSET.key, rejectEncoding.name());
+			
+			this.dataStore = (ShapefileDataStore) new ShapefileDataStoreFactory().createNewDataStore(params);
+			this.dataStore.setCharset(rejectEncoding);
+			this.dataStore.createSchema(builder.buildFeatureType());
+			
+			Path cpgPath = path.resolveSibling(path.getFileName().toString().replaceFirst("\\.shp$", ".cpg"));
+			Files.writeString(cpgPath, rejectEncoding.name(), StandardCharsets.US_ASCII);
+			
+			this.writer = dataStore.getFeatureWriterAppend(dataStore.getTypeNames()[0], Transaction.AUTO_COMMIT);
+		}
+		
+		void close() throws IOException {
+			try {
+				writer.close();
+			} finally {
+				dataStore.dispose();
+			}
+		}
+	}
+}
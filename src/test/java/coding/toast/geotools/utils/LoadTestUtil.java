@@ -0,0 +1,107 @@
+package coding.toast.geotools.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <h2>Measures the stages of a load test</h2>
+ * For every stage : throughput, latency percentiles (p50/p95/p99) and peak heap.<br>
+ * (1) latencies are kept in a plain long[], so recording millions of them costs almost nothing.<br>
+ * (2) peak heap is read from the heap {@link MemoryPoolMXBean}s, whose peaks are reset when a stage starts.
+ * The peaks of each pool (eden, survivor, old) are added, so this is an upper bound of the real peak.
+ */
+public class LoadTestUtil {
+	
+	/**
+	 * @param stage         stage name
+	 * @param operations    number of processed items (features, tables ...)
+	 * @param elapsed       wall clock time of the stage
+	 * @param p50           median latency of one recorded sample
+	 * @param p95           95th percentile latency
+	 * @param p99           99th percentile latency
+	 * @param peakHeapBytes peak heap usage during the stage
+	 */
+	public record StageResult(String stage, long operations, Duration elapsed,
+	                          Duration p50, Duration p95, Duration p99, long peakHeapBytes) {
+		
+		public double throughput() {
+			return elapsed.isZero() ? 0 : operations * 1_000_000_000.0 / elapsed.toNanos();
+		}
+		
+		@Override
+		public String toString() {
+			return "%-28s %12d ops %10d ms %14.1f ops/s   p50 %10.3f ms   p95 %10.3f ms   p99 %10.3f ms   peak heap %6d MB"
+				.formatted(stage, operations, elapsed.toMillis(), throughput(),
+					p50.toNanos() / 1e6, p95.toNanos() / 1e6, p99.toNanos() / 1e6, peakHeapBytes / (1024 * 1024));
+		}
+	}
+	
+	/**
+	 * Start measuring a stage. Garbage left by the previous stage is collected first.
+	 */
+	public static Stage start(String name) {
+		return new Stage(name);
+	}
+	
+	public static void printReport(List<StageResult> results) {
+		System.out.println("\n===== Load Test Report =====");
+		results.forEach(System.out::println);
+	}
+	
+	public static class Stage {
+		
+		private final String name;
+		private final long start;
+		private long[] latencies = new long[1024];
+		private int samples;
+		private long operations;
+		
+		private Stage(String name) {
+			this.name = name;
+			System.gc();
+			heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+			this.start = System.nanoTime();
+		}
+		
+		/**
+		 * record one sample
+		 * @param elapsedNanos latency of the sample
+		 * @param operations   items processed by the sample (ex: features of a batch)
+		 */
+		public void record(long elapsedNanos, long operations) {
+			if (samples == latencies.length) {
+				latencies = Arrays.copyOf(latencies, samples * 2);
+			}
+			latencies[samples++] = elapsedNanos;
+			this.operations += operations;
+		}
+		
+		public StageResult finish() {
+			Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+			long peakHeap = heapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+			
+			long[] sorted = Arrays.copyOf(latencies, samples);
+			Arrays.sort(sorted);
+			return new StageResult(name, operations, elapsed,
+				percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99), peakHeap);
+		}
+		
+		private static Duration percentile(long[] sorted, double percentile) {
+			if (sorted.length == 0) {
+				return Duration.ZERO;
+			}
+			int index = (int) Math.ceil(percentile * sorted.length) - 1;
+			return Duration.ofNanos(sorted[Math.max(0, index)]);
+		}
+	}
+	
+	private static List<MemoryPoolMXBean> heapPools() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream()
+			.filter(pool -> pool.getType() == MemoryType.HEAP)
+			.toList();
+	}
+}
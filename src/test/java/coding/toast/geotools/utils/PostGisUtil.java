@@ -80,6 +80,7 @@ public class PostGisUtil {
 		// Recommended options:
 		// JDBCDataStoreFactory.FETCHSIZE.key - when reading a large table
 		// JDBCDataStoreFactory.BATCH_INSERT_SIZE - when writing data to a table. Default value is 1!
+		//   (AdaptiveBatchTuner can measure a good value for your table and database)
 		
 		// Other useful options:
 		// JDBCDataStoreFactory.MAXCONN; // minimum connections (numeric value)
@@ -0,0 +1,410 @@
+package coding.toast.geotools.utils;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+
+import java.util.Arrays;
+
+/**
+ * <h2>Compact geometry encoding for caches and pipeline stages</h2>
+ * Coordinates are snapped to a grid (10^-decimalDigits), stored as the difference from the previous coordinate,
+ * and written as zigzag varints. Dense points and lines in a projected CRS like EPSG:5186 mostly need 2~3 bytes
+ * per ordinate, instead of 8 bytes in WKB.<br>
+ * <br>
+ * Layout : [version][srid varint][decimalDigits zigzag][geometry]<br>
+ * geometry : [type | hasZ flag][body]. Point/LineString bodies are [coordinate count varint][ordinates],
+ * Polygon is [ring count][rings], Multi* and GeometryCollection are [geometry count][geometries].<br>
+ * <br>
+ * Note (1) : decoding gives back the quantized coordinates, not the original ones. Choose decimalDigits with care!
+ * (3 = millimetre for metre-based CRS, 7 = about 1cm for EPSG:4326)<br>
+ * Note (2) : only X, Y and Z are stored. M values are dropped.<br>
+ * Note (3) : instances are immutable and can be shared between threads.
+ */
+public class QuantizedGeometryCodec {
+	
+	private static final byte VERSION = 1;
+	
+	private static final int TYPE_POINT = 1;
+	private static final int TYPE_LINESTRING = 2;
+	private static final int TYPE_POLYGON = 3;
+	private static final int TYPE_MULTIPOINT = 4;
+	private static final int TYPE_MULTILINESTRING = 5;
+	private static final int TYPE_MULTIPOLYGON = 6;
+	private static final int TYPE_GEOMETRYCOLLECTION = 7;
+	private static final int TYPE_LINEARRING = 8;
+	private static final int FLAG_Z = 0x10;
+	private static final double MAX_QUANTIZED = 0x1p62;
+	
+	private final int srid;
+	private final int decimalDigits;
+	private final double scale;
+	private final GeometryFactory geometryFactory;
+	
+	/**
+	 * @param srid          SRID written to the header and set to decoded geometries (ex: 5186)
+	 * @param decimalDigits number of decimal digits kept. negative values are allowed (-1 = 10 units grid).
+	 *                      |ordinate| * 10^decimalDigits must stay below 2^62, otherwise encode throws IllegalArgumentException
+	 */
+	public QuantizedGeometryCodec(int srid, int decimalDigits) {
+		this(srid, decimalDigits, null);
+	}
+	
+	/**
+	 * @param geometryFactory factory used for decoding. when null, a factory with a fixed PrecisionModel is created
+	 */
+	public QuantizedGeometryCodec(int srid, int decimalDigits, GeometryFactory geometryFactory) {
+		if (decimalDigits < -9 || decimalDigits > 15) {
+			throw new IllegalArgumentException("decimalDigits must be between -9 and 15 : " + decimalDigits);
+		}
+		this.srid = srid;
+		this.decimalDigits = decimalDigits;
+		this.scale = Math.pow(10, decimalDigits);
+		this.geometryFactory = geometryFactory != null
+			? geometryFactory
+			: new GeometryFactory(new PrecisionModel(scale), srid);
+	}
+	
+	public int getSrid() {
+		return srid;
+	}
+	
+	public int getDecimalDigits() {
+		return decimalDigits;
+	}
+	
+	/**
+	 * @return header + encoded geometry
+	 */
+	public byte[] encode(Geometry geometry) {
+		ByteSink sink = new ByteSink(16 + geometry.getNumPoints() * 4);
+		writeHeader(sink);
+		writeGeometry(geometry, sink, new long[3]);
+		return sink.toByteArray();
+	}
+	
+	/**
+	 * Encode only a coordinate sequence (for stages that pass sequences instead of geometries).
+	 * @return header + encoded sequence
+	 */
+	public byte[] encode(CoordinateSequence sequence) {
+		ByteSink sink = new ByteSink(16 + sequence.size() * 4);
+		writeHeader(sink);
+		boolean hasZ = hasZ(sequence);
+		sink.writeByte(hasZ ? FLAG_Z : 0);
+		writeSequence(sequence, hasZ, sink, new long[3]);
+		return sink.toByteArray();
+	}
+	
+	/**
+	 * @param bytes result of {@link #encode(Geometry)}
+	 * @return decoded geometry with SRID of the header
+	 * @throws IllegalArgumentException when the header doesn't match this codec (SRID or decimalDigits)
+	 */
+	public Geometry decode(byte[] bytes) {
+		ByteSource source = new ByteSource(bytes);
+		readHeader(source);
+		return readGeometry(source, new long[3]);
+	}
+	
+	/**
+	 * @param bytes result of {@link #encode(CoordinateSequence)}
+	 * @return decoded sequence, created by the CoordinateSequenceFactory of this codec's GeometryFactory
+	 */
+	public CoordinateSequence decodeSequence(byte[] bytes) {
+		ByteSource source = new ByteSource(bytes);
+		readHeader(source);
+		boolean hasZ = (source.readByte() & FLAG_Z) != 0;
+		return readSequence(source, hasZ, new long[3]);
+	}
+	
+	private void writeHeader(ByteSink sink) {
+		sink.writeByte(VERSION);
+		sink.writeVarLong(srid & 0xFFFFFFFFL);
+		sink.writeVarLong(zigzag(decimalDigits));
+	}
+	
+	private void readHeader(ByteSource source) {
+		int version = source.readByte();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported quantized geometry version : " + version);
+		}
+		int headerSrid = (int) source.readVarLong();
+		int headerDigits = (int) unzigzag(source.readVarLong());
+		if (headerSrid != srid || headerDigits != decimalDigits) {
+			throw new IllegalArgumentException("Encoded with SRID %d / %d digits, but this codec is SRID %d / %d digits"
+				.formatted(headerSrid, headerDigits, srid, decimalDigits));
+		}
+	}
+	
+	/**
+	 * @param previous last written quantized x, y, z. deltas continue across parts of the same geometry.
+	 */
+	private void writeGeometry(Geometry geometry, ByteSink sink, long[] previous) {
+		boolean hasZ = hasZ(geometry);
+		int flag = hasZ ? FLAG_Z : 0;
+		
+		if (geometry instanceof Point point) {
+			sink.writeByte(TYPE_POINT | flag);
+			writeSequence(point.getCoordinateSequence(), hasZ, sink, previous);
+		} else if (geometry instanceof LineString lineString) {
+			sink.writeByte((lineString instanceof LinearRing ? TYPE_LINEARRING : TYPE_LINESTRING) | flag);
+			writeSequence(lineString.getCoordinateSequence(), hasZ, sink, previous);
+		} else if (geometry instanceof Polygon polygon) {
+			sink.writeByte(TYPE_POLYGON | flag);
+			writePolygonRings(polygon, hasZ, sink, previous);
+		} else if (geometry instanceof GeometryCollection collection) {
+			int type = collection instanceof MultiPoint ? TYPE_MULTIPOINT
+				: collection instanceof MultiLineString ? TYPE_MULTILINESTRING
+				: collection instanceof MultiPolygon ? TYPE_MULTIPOLYGON
+				: TYPE_GEOMETRYCOLLECTION;
+			sink.writeByte(type | flag);
+			sink.writeVarLong(collection.getNumGeometries());
+			for (int i = 0; i < collection.getNumGeometries(); i++) {
+				Geometry part = collection.getGeometryN(i);
+				if (type == TYPE_GEOMETRYCOLLECTION) {
+					writeGeometry(part, sink, previous);
+				} else if (type == TYPE_MULTIPOLYGON) {
+					writePolygonRings((Polygon) part, hasZ, sink, previous);
+				} else {
+					// Point or LineString, the type is already known from the collection
+					CoordinateSequence sequence = part instanceof Point p
+						? p.getCoordinateSequence()
+						: ((LineString) part).getCoordinateSequence();
+					writeSequence(sequence, hasZ, sink, previous);
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Unsupported geometry type : " + geometry.getGeometryType());
+		}
+	}
+	
+	private void writePolygonRings(Polygon polygon, boolean hasZ, ByteSink sink, long[] previous) {
+		if (polygon.isEmpty()) {
+			sink.writeVarLong(0);
+			return;
+		}
+		sink.writeVarLong(1 + polygon.getNumInteriorRing());
+		writeSequence(polygon.getExteriorRing().getCoordinateSequence(), hasZ, sink, previous);
+		for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+			writeSequence(polygon.getInteriorRingN(i).getCoordinateSequence(), hasZ, sink, previous);
+		}
+	}
+	
+	/**
+	 * Ordinates are read straight from the sequence, no Coordinate object is created.
+	 */
+	private void writeSequence(CoordinateSequence sequence, boolean hasZ, ByteSink sink, long[] previous) {
+		int size = sequence.size();
+		sink.writeVarLong(size);
+		for (int i = 0; i < size; i++) {
+			long x = quantize(sequence.getX(i));
+			long y = quantize(sequence.getY(i));
+			sink.writeVarLong(zigzag(x - previous[0]));
+			sink.writeVarLong(zigzag(y - previous[1]));
+			previous[0] = x;
+			previous[1] = y;
+			if (hasZ) {
+				double zValue = sequence.getZ(i);
+				long z = Double.isNaN(zValue) ? 0 : quantize(zValue);
+				sink.writeVarLong(zigzag(z - previous[2]));
+				previous[2] = z;
+			}
+		}
+	}
+	
+	private Geometry readGeometry(ByteSource source, long[] previous) {
+		int typeAndFlag = source.readByte();
+		boolean hasZ = (typeAndFlag & FLAG_Z) != 0;
+		int type = typeAndFlag & 0x0F;
+		
+		switch (type) {
+			case TYPE_POINT:
+				return geometryFactory.createPoint(readSequence(source, hasZ, previous));
+			case TYPE_LINESTRING:
+				return geometryFactory.createLineString(readSequence(source, hasZ, previous));
+			case TYPE_LINEARRING:
+				return geometryFactory.createLinearRing(readSequence(source, hasZ, previous));
+			case TYPE_POLYGON:
+				return readPolygon(source, hasZ, previous);
+			case TYPE_MULTIPOINT: {
+				Point[] points = new Point[(int) source.readVarLong()];
+				for (int i = 0; i < points.length; i++) {
+					points[i] = geometryFactory.createPoint(readSequence(source, hasZ, previous));
+				}
+				return geometryFactory.createMultiPoint(points);
+			}
+			case TYPE_MULTILINESTRING: {
+				LineString[] lineStrings = new LineString[(int) source.readVarLong()];
+				for (int i = 0; i < lineStrings.length; i++) {
+					lineStrings[i] = geometryFactory.createLineString(readSequence(source, hasZ, previous));
+				}
+				return geometryFactory.createMultiLineString(lineStrings);
+			}
+			case TYPE_MULTIPOLYGON: {
+				Polygon[] polygons = new Polygon[(int) source.readVarLong()];
+				for (int i = 0; i < polygons.length; i++) {
+					polygons[i] = readPolygon(source, hasZ, previous);
+				}
+				return geometryFactory.createMultiPolygon(polygons);
+			}
+			case TYPE_GEOMETRYCOLLECTION: {
+				Geometry[] geometries = new Geometry[(int) source.readVarLong()];
+				for (int i = 0; i < geometries.length; i++) {
+					geometries[i] = readGeometry(source, previous);
+				}
+				return geometryFactory.createGeometryCollection(geometries);
+			}
+			default:
+				throw new IllegalArgumentException("Unknown quantized geometry type : " + type);
+		}
+	}
+	
+	private Polygon readPolygon(ByteSource source, boolean hasZ, long[] previous) {
+		int ringCount = (int) source.readVarLong();
+		if (ringCount == 0) {
+			return geometryFactory.createPolygon();
+		}
+		LinearRing shell = geometryFactory.createLinearRing(readSequence(source, hasZ, previous));
+		LinearRing[] holes = new LinearRing[ringCount - 1];
+		for (int i = 0; i < holes.length; i++) {
+			holes[i] = geometryFactory.createLinearRing(readSequence(source, hasZ, previous));
+		}
+		return geometryFactory.createPolygon(shell, holes);
+	}
+	
+	/**
+	 * Ordinates are written straight into the new sequence, no Coordinate object is created.
+	 */
+	private CoordinateSequence readSequence(ByteSource source, boolean hasZ, long[] previous) {
+		int size = (int) source.readVarLong();
+		CoordinateSequence sequence = geometryFactory.getCoordinateSequenceFactory().create(size, hasZ ? 3 : 2, 0);
+		for (int i = 0; i < size; i++) {
+			previous[0] += unzigzag(source.readVarLong());
+			previous[1] += unzigzag(source.readVarLong());
+			sequence.setOrdinate(i, CoordinateSequence.X, previous[0] / scale);
+			sequence.setOrdinate(i, CoordinateSequence.Y, previous[1] / scale);
+			if (hasZ) {
+				previous[2] += unzigzag(source.readVarLong());
+				sequence.setOrdinate(i, CoordinateSequence.Z, previous[2] / scale);
+			}
+		}
+		return sequence;
+	}
+	
+	/**
+	 * @throws IllegalArgumentException when the value is NaN, or too big for the decimalDigits.
+	 * Math.round would silently return Long.MAX_VALUE (or MIN_VALUE) and the deltas would be garbage.
+	 */
+	private long quantize(double value) {
+		double scaled = value * scale;
+		// 2^62 instead of 2^63, so the delta between two quantized values still fits in a long
+		if (Double.isNaN(scaled) || Math.abs(scaled) >= MAX_QUANTIZED) {
+			throw new IllegalArgumentException("Ordinate " + value + " can't be quantized with "
+				+ decimalDigits + " decimal digits");
+		}
+		return Math.round(scaled);
+	}
+	
+	private static boolean hasZ(Geometry geometry) {
+		if (geometry instanceof Point point) {
+			return hasZ(point.getCoordinateSequence());
+		} else if (geometry instanceof LineString lineString) {
+			return hasZ(lineString.getCoordinateSequence());
+		} else if (geometry instanceof Polygon polygon) {
+			return hasZ(polygon.getExteriorRing());
+		}
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			if (hasZ(geometry.getGeometryN(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * CoordinateArraySequence always reports dimension 3, so the first Z value decides.
+	 */
+	private static boolean hasZ(CoordinateSequence sequence) {
+		return sequence.hasZ() && sequence.size() > 0 && !Double.isNaN(sequence.getZ(0));
+	}
+	
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * growable byte array. (ByteArrayOutputStream is synchronized, and every write would pay for it)
+	 */
+	private static final class ByteSink {
+		private byte[] buffer;
+		private int position;
+		
+		ByteSink(int initialCapacity) {
+			this.buffer = new byte[Math.max(16, initialCapacity)];
+		}
+		
+		void writeByte(int value) {
+			if (position == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			buffer[position++] = (byte) value;
+		}
+		
+		void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+		
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, position);
+		}
+	}
+	
+	private static final class ByteSource {
+		private final byte[] bytes;
+		private int position;
+		
+		ByteSource(byte[] bytes) {
+			this.bytes = bytes;
+		}
+		
+		int readByte() {
+			if (position >= bytes.length) {
+				throw new IllegalArgumentException("Unexpected end of quantized geometry");
+			}
+			return bytes[position++] & 0xFF;
+		}
+		
+		long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				if (shift > 63) {
+					throw new IllegalArgumentException("Malformed varint in quantized geometry");
+				}
+				b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+	}
+}
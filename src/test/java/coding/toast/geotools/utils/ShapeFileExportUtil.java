@@ -0,0 +1,402 @@
+package coding.toast.geotools.utils;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.FeatureTypes;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.locationtech.jts.geom.*;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <h2>Exports PostGIS tables (or any DataStore entries) to ShapeFiles</h2>
+ * Every table is written by its own worker thread, so exporting N tables takes roughly as long as the biggest one.<br>
+ * Writing itself is done by {@link ShapefileDataStore}, whose ShapefileWriter and DbaseFileWriter already write
+ * the .shp/.shx/.dbf files through buffered NIO {@link FileChannel}s.<br>
+ * A layer is split into several files (name.shp, name_part001.shp, name_part002.shp ...) when it gets close
+ * to the 2GB limit of the ShapeFile format.
+ */
+public class ShapeFileExportUtil {
+	
+	/**
+	 * .shp and .dbf files must not grow beyond 2GB. (offsets in the .shx file are signed 32-bit values)<br>
+	 * A little headroom is kept because the .shp record length below is only an estimation for non-2D geometries.
+	 */
+	public static final long MAX_SHAPEFILE_BYTES = 2_000_000_000L;
+	
+	/**
+	 * ShapeFile attribute (=dbf column) names can't be longer than 10 characters.
+	 */
+	private static final int MAX_DBF_FIELD_NAME_LENGTH = 10;
+	
+	/**
+	 * name of the split files after the first one. (parcel_part001 ...)<br>
+	 * "_1" would overwrite the export of a real table like parcel_1.
+	 */
+	private static final String SPLIT_FILE_NAME_FORMAT = "%s_part%03d";
+	
+	private static final Pattern SPLIT_FILE_NAME = Pattern.compile("(.+)_part\\d{3,}");
+	
+	/**
+	 * Export a result for each table.
+	 * @param tableName  exported table name
+	 * @param shapeFiles written .shp files. more than one when the table was split
+	 * @param featureCount number of exported features
+	 * @param elapsed time spent on the table
+	 */
+	public record ExportResult(String tableName, List<Path> shapeFiles, long featureCount, Duration elapsed) {
+	}
+	
+	/**
+	 * Export several tables to ShapeFiles concurrently. (one thread per table)
+	 * @param sourceDataStore DataStore to read (ex: JDBCDataStore from PostGisUtil)
+	 * @param tableNames      table (=typeName) list to export
+	 * @param outputDirectory directory where the ShapeFiles are written
+	 * @param encoding        dbf encoding. it is also written to the .cpg file
+	 * @param maxThreads      maximum number of tables written at the same time
+	 * @return export result of each table, in the same order as tableNames
+	 * @throws IOException occurs when any of the tables fails to export
+	 */
+	public static List<ExportResult> exportTables(DataStore sourceDataStore, List<String> tableNames,
+	                                              Path outputDirectory, String encoding,
+	                                              int maxThreads) throws IOException {
+		return exportTables(sourceDataStore, tableNames, outputDirectory, encoding, maxThreads, MAX_SHAPEFILE_BYTES);
+	}
+	
+	/**
+	 * Same as {@link #exportTables(DataStore, List, Path, String, int)}, but the split size can be configured.
+	 * @param maxFileBytes a new ShapeFile is started when either .shp or .dbf would get bigger than this value
+	 */
+	public static List<ExportResult> exportTables(DataStore sourceDataStore, List<String> tableNames,
+	                                              Path outputDirectory, String encoding,
+	                                              int maxThreads, long maxFileBytes) throws IOException {
+		for (String tableName : tableNames) {
+			Matcher matcher = SPLIT_FILE_NAME.matcher(tableName);
+			if (matcher.matches() && tableNames.contains(matcher.group(1))) {
+				throw new IllegalArgumentException(tableName + " can be overwritten by a split file of "
+					+ matcher.group(1) + ", export them to different directories!");
+			}
+		}
+		Files.createDirectories(outputDirectory);
+		Charset charset = Charset.forName(encoding);
+		
+		int threadCount = Math.max(1, Math.min(maxThreads, tableNames.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			List<Future<ExportResult>> futures = new ArrayList<>();
+			for (String tableName : tableNames) {
+				futures.add(executor.submit(
+					() -> exportTable(sourceDataStore, tableName, outputDirectory, charset, maxFileBytes)));
+			}
+			
+			List<ExportResult> results = new ArrayList<>();
+			for (Future<ExportResult> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ShapeFile export interrupted!", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Fail to export table to ShapeFile!", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Export one table to one or more ShapeFiles.
+	 * @param sourceDataStore DataStore to read
+	 * @param tableName       table (=typeName) to export
+	 * @param outputDirectory directory where the ShapeFiles are written
+	 * @param charset         dbf encoding
+	 * @param maxFileBytes    split size of the .shp and .dbf files
+	 * @return export result
+	 * @throws IOException occurs when reading the table or writing the ShapeFile fails
+	 */
+	public static ExportResult exportTable(DataStore sourceDataStore, String tableName, Path outputDirectory,
+	                                       Charset charset, long maxFileBytes) throws IOException {
+		long start = System.nanoTime();
+		SimpleFeatureSource featureSource = sourceDataStore.getFeatureSource(tableName);
+		SimpleFeatureType sourceSchema = featureSource.getSchema();
+		
+		SimpleFeatureType shapeFileSchema = createShapeFileSchema(sourceSchema, resolveGeometryBinding(featureSource));
+		
+		// shapeFileSchema attribute index [i + 1] is filled with the sourceSchema attribute below
+		// (index 0 is always the geometry)
+		List<String> sourceAttributeNames = new ArrayList<>();
+		List<Boolean> writtenAsText = new ArrayList<>();
+		for (AttributeDescriptor descriptor : sourceSchema.getAttributeDescriptors()) {
+			if (!(descriptor instanceof GeometryDescriptor)) {
+				Class<?> binding = descriptor.getType().getBinding();
+				sourceAttributeNames.add(descriptor.getLocalName());
+				// types unknown to dbf (UUID, arrays, json ...) : see toDbfBinding
+				writtenAsText.add(binding != String.class && toDbfBinding(binding) == String.class);
+			}
+		}
+		
+		List<Path> writtenFiles = new ArrayList<>();
+		long featureCount = 0;
+		
+		try (SimpleFeatureIterator features = featureSource.getFeatures(Query.ALL).features()) {
+			
+			ShapeFilePart part = null;
+			try {
+				while (features.hasNext()) {
+					SimpleFeature sourceFeature = features.next();
+					Geometry geometry = (Geometry) sourceFeature.getDefaultGeometry();
+					long shpRecordBytes = 8 + estimateShpContentLength(geometry);
+					
+					if (part == null || part.isFull(shpRecordBytes, maxFileBytes)) {
+						if (part != null) {
+							part.close();
+						}
+						String fileName = writtenFiles.isEmpty() ? tableName
+							: SPLIT_FILE_NAME_FORMAT.formatted(tableName, writtenFiles.size());
+						Path shapeFilePath = outputDirectory.resolve(fileName + ".shp");
+						part = new ShapeFilePart(shapeFilePath, shapeFileSchema, charset);
+						writtenFiles.add(shapeFilePath);
+					}
+					
+					SimpleFeature targetFeature = part.writer.next();
+					targetFeature.setDefaultGeometry(geometry);
+					for (int i = 0; i < sourceAttributeNames.size(); i++) {
+						Object value = sourceFeature.getAttribute(sourceAttributeNames.get(i));
+						targetFeature.setAttribute(i + 1, writtenAsText.get(i) ? toDbfText(value) : value);
+					}
+					part.writer.write();
+					part.written(shpRecordBytes);
+					featureCount++;
+				}
+				
+				// an empty table still becomes an (empty) ShapeFile
+				if (part == null) {
+					Path shapeFilePath = outputDirectory.resolve(tableName + ".shp");
+					part = new ShapeFilePart(shapeFilePath, shapeFileSchema, charset);
+					writtenFiles.add(shapeFilePath);
+				}
+			} finally {
+				if (part != null) {
+					part.close();
+				}
+			}
+		}
+		
+		return new ExportResult(tableName, writtenFiles, featureCount, Duration.ofNanos(System.nanoTime() - start));
+	}
+	
+	/**
+	 * Create a FeatureType which can be written to a ShapeFile.<br>
+	 * (1) the geometry must be the first attribute, and GeoTools names it "the_geom".<br>
+	 * (2) dbf field names are truncated to 10 characters.<br>
+	 * (3) types not supported by dbf are written as String. (the toString() of the value)
+	 * @param sourceSchema    schema of the table
+	 * @param geometryBinding concrete geometry type (Point, MultiPolygon ...)
+	 * @return FeatureType for ShapefileDataStore.createSchema
+	 */
+	public static SimpleFeatureType createShapeFileSchema(SimpleFeatureType sourceSchema, Class<?> geometryBinding) {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(sourceSchema.getTypeName());
+		builder.setCRS(sourceSchema.getCoordinateReferenceSystem());
+		builder.add("the_geom", geometryBinding);
+		
+		Set<String> usedNames = new HashSet<>();
+		usedNames.add("the_geom");
+		for (AttributeDescriptor descriptor : sourceSchema.getAttributeDescriptors()) {
+			if (descriptor instanceof GeometryDescriptor) {
+				continue;
+			}
+			int fieldLength = FeatureTypes.getFieldLength(descriptor);
+			if (fieldLength > 0) {
+				builder.length(fieldLength);
+			}
+			builder.add(uniqueFieldName(descriptor.getLocalName(), usedNames),
+				toDbfBinding(descriptor.getType().getBinding()));
+		}
+		return builder.buildFeatureType();
+	}
+	
+	/**
+	 * ShapeFile can't store the abstract "Geometry" type.
+	 * When the table geometry column is declared like that, the first non-null geometry decides the type.
+	 */
+	private static Class<?> resolveGeometryBinding(SimpleFeatureSource featureSource) throws IOException {
+		Class<?> binding = featureSource.getSchema().getGeometryDescriptor().getType().getBinding();
+		if (binding != Geometry.class && binding != GeometryCollection.class) {
+			return binding;
+		}
+		try (SimpleFeatureIterator features = featureSource.getFeatures().features()) {
+			while (features.hasNext()) {
+				Object geometry = features.next().getDefaultGeometry();
+				if (geometry instanceof Puntal) {
+					return MultiPoint.class;
+				} else if (geometry instanceof Lineal) {
+					return MultiLineString.class;
+				} else if (geometry instanceof Polygonal) {
+					return MultiPolygon.class;
+				}
+			}
+		}
+		return Point.class;
+	}
+	
+	private static Class<?> toDbfBinding(Class<?> binding) {
+		if (binding == Integer.class || binding == Short.class || binding == Byte.class) {
+			return Integer.class;
+		} else if (binding == Long.class || binding == BigInteger.class) {
+			return Long.class;
+		} else if (binding == Double.class || binding == Float.class) {
+			return Double.class;
+		} else if (binding == BigDecimal.class || binding == Boolean.class || binding == String.class) {
+			return binding;
+		} else if (Date.class.isAssignableFrom(binding)) {
+			// java.sql.Date, java.sql.Timestamp
+			return Date.class;
+		}
+		return String.class;
+	}
+	
+	/**
+	 * value of an attribute which toDbfBinding turned into String
+	 */
+	private static String toDbfText(Object value) {
+		if (value == null) {
+			return null;
+		}
+		return value instanceof Object[] array ? Arrays.deepToString(array) : value.toString();
+	}
+	
+	private static String uniqueFieldName(String name, Set<String> usedNames) {
+		String candidate = name.length() > MAX_DBF_FIELD_NAME_LENGTH ? name.substring(0, MAX_DBF_FIELD_NAME_LENGTH) : name;
+		int suffix = 1;
+		while (!usedNames.add(candidate.toLowerCase(Locale.ROOT))) {
+			String suffixText = String.valueOf(suffix++);
+			candidate = name.substring(0, Math.min(name.length(), MAX_DBF_FIELD_NAME_LENGTH - suffixText.length())) + suffixText;
+		}
+		return candidate;
+	}
+	
+	/**
+	 * Size of a .shp record content, following the ESRI ShapeFile Technical Description.<br>
+	 * Exact for 2D geometries. Z/M ordinates are counted as if both were written, so it never underestimates.
+	 */
+	static long estimateShpContentLength(Geometry geometry) {
+		if (geometry == null || geometry.isEmpty()) {
+			return 4; // Null Shape (shape type only)
+		}
+		long numPoints = geometry.getNumPoints();
+		long extra = hasZ(geometry) ? 32 + 16 * numPoints : 0;
+		if (geometry instanceof Point) {
+			return 20 + (extra > 0 ? 16 : 0);
+		} else if (geometry instanceof MultiPoint) {
+			return 40 + 16 * numPoints + extra;
+		}
+		long numParts = 0;
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			Geometry part = geometry.getGeometryN(i);
+			numParts += part instanceof Polygon polygon ? 1 + polygon.getNumInteriorRing() : 1;
+		}
+		return 44 + 4 * numParts + 16 * numPoints + extra;
+	}
+	
+	private static boolean hasZ(Geometry geometry) {
+		Coordinate coordinate = geometry.getCoordinate();
+		return coordinate != null && !Double.isNaN(coordinate.getZ());
+	}
+	
+	/**
+	 * One output ShapeFile (.shp/.shx/.dbf/.prj/.cpg) and its open FeatureWriter
+	 */
+	private static class ShapeFilePart {
+		
+		private final ShapefileDataStore dataStore;
+		private final FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+		private final int dbfRecordLength;
+		private long shpBytes = 100; // header
+		private long dbfBytes;
+		private long recordCount;
+		
+		ShapeFilePart(Path shapeFilePath, SimpleFeatureType schema, Charset charset) throws IOException {
+			Map<String, Serializable> params = new HashMap<>();
+			params.put(ShapefileDataStoreFactory.URLP.key, shapeFilePath.toUri().toURL());
+			params.put(ShapefileDataStoreFactory.CREATE_SPATIAL_INDEX.key, Boolean.FALSE);
+			params.put(ShapefileDataStoreFactory.DBFCHARSET.key, charset.name());
+			
+			this.dataStore = (ShapefileDataStore) new ShapefileDataStoreFactory().createNewDataStore(params);
+			this.dataStore.setCharset(charset);
+			
+			// .shp, .shx, .dbf and .prj are created here
+			this.dataStore.createSchema(schema);
+			
+			// write .cpg the same way ShapeFileUtil.readShapeFileEncoding reads it (just the encoding name)
+			Path cpgPath = shapeFilePath.resolveSibling(
+				shapeFilePath.getFileName().toString().replaceFirst("\\.shp$", ".cpg"));
+			Files.writeString(cpgPath, charset.name(), StandardCharsets.US_ASCII);
+			
+			Path dbfPath = shapeFilePath.resolveSibling(
+				shapeFilePath.getFileName().toString().replaceFirst("\\.shp$", ".dbf"));
+			int[] dbfHeader = readDbfHeaderAndRecordLength(dbfPath);
+			this.dbfBytes = dbfHeader[0] + 1; // header + EOF marker
+			this.dbfRecordLength = dbfHeader[1];
+			
+			this.writer = dataStore.getFeatureWriterAppend(dataStore.getTypeNames()[0], Transaction.AUTO_COMMIT);
+		}
+		
+		boolean isFull(long shpRecordBytes, long maxFileBytes) {
+			// every file gets at least one record, otherwise a huge geometry would loop forever
+			return recordCount > 0 && (shpBytes + shpRecordBytes > maxFileBytes
+				|| dbfBytes + dbfRecordLength > maxFileBytes);
+		}
+		
+		void written(long shpRecordBytes) {
+			shpBytes += shpRecordBytes;
+			dbfBytes += dbfRecordLength;
+			recordCount++;
+		}
+		
+		void close() throws IOException {
+			try {
+				writer.close();
+			} finally {
+				dataStore.dispose();
+			}
+		}
+		
+		/**
+		 * @return [header length, record length] of a dbf file
+		 */
+		private static int[] readDbfHeaderAndRecordLength(Path dbfPath) throws IOException {
+			try (FileChannel channel = FileChannel.open(dbfPath, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(header, 0);
+				return new int[]{header.getShort(8) & 0xFFFF, header.getShort(10) & 0xFFFF};
+			}
+		}
+	}
+}
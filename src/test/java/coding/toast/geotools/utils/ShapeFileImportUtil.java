@@ -0,0 +1,375 @@
+package coding.toast.geotools.utils;
+
+import org.geotools.data.DataStore;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+/**
+ * <h2>ShapeFile (or any FeatureSource) to PostGIS table import</h2>
+ * This is the loop of ShapeFileToDatabaseTableAppendingTest, made reusable.<br>
+ * (1) attributes are copied by name (case-insensitive), the geometry goes to the table geometry column.<br>
+ * (2) when the source CRS and the table SRID are different, geometries are reprojected during the load.
+ * The MathTransform is looked up only once, coordinates are transformed in place,
+ * and a batch is reprojected (in parallel) while the previous batch is being written.
+ * The source features are never changed : geometries are copied first,
+ * unless the source creates new features for every read (ShapeFile, JDBC).<br>
+ * (3) every batch is committed in its own transaction. The batch size can also be tuned while importing ({@link AdaptiveBatchTuner}).<br>
+ * (4) optionally, geometries are validated and repaired in the same parallel step, after the reprojection ({@link GeometryValidator}).<br>
+ * <br>
+ * <strong>The target table must have a numeric primary key</strong>, otherwise the FeatureSource is not a FeatureStore.
+ */
+public class ShapeFileImportUtil {
+	
+	/**
+	 * MathTransform lookup is expensive (EPSG database, datum shift search), so it is done once per CRS pair
+	 */
+	private static final Map<List<CoordinateReferenceSystem>, MathTransform> TRANSFORM_CACHE = new ConcurrentHashMap<>();
+	
+	/**
+	 * @param importedCount number of features written to the table
+	 * @param reprojected   whether the geometries were reprojected to the table CRS
+	 * @param elapsed       time spent on the import
+	 */
+	public record ImportResult(long importedCount, boolean reprojected, Duration elapsed) {
+	}
+	
+	/**
+	 * called after every committed batch (ex: to measure write latency in a load test)
+	 */
+	@FunctionalInterface
+	public interface BatchListener {
+		void batchWritten(int featureCount, long elapsedNanos);
+	}
+	
+	/**
+	 * Import every feature of the source into the target table.
+	 * @param source          features to import (ex: shapeFileDataStore.getFeatureSource())
+	 * @param targetDataStore PostGIS DataStore
+	 * @param targetTableName table to append to
+	 * @param batchSize       number of features written and committed at once
+	 * @return import result
+	 * @throws IOException occurs when reading or writing fails. the batch being written is rolled back.
+	 * @throws FactoryException occurs when the source CRS can't be transformed to the table CRS
+	 */
+	public static ImportResult importFeatures(SimpleFeatureSource source, DataStore targetDataStore,
+	                                          String targetTableName, int batchSize) throws IOException, FactoryException {
+		return importFeatures(source, targetDataStore, targetTableName, batchSize, (featureCount, elapsedNanos) -> {});
+	}
+	
+	/**
+	 * Same as {@link #importFeatures(SimpleFeatureSource, DataStore, String, int)}, and reports every written batch.
+	 * @param batchListener called after every batch commit, on the calling thread
+	 */
+	public static ImportResult importFeatures(SimpleFeatureSource source, DataStore targetDataStore, String targetTableName,
+	                                          int batchSize, BatchListener batchListener) throws IOException, FactoryException {
+		return importFeatures(source, targetDataStore, targetTableName, () -> batchSize, batchListener, null);
+	}
+	
+	/**
+	 * Same as {@link #importFeatures(SimpleFeatureSource, DataStore, String, int)}, and every geometry is validated
+	 * (and repaired) before it is written. See {@link GeometryValidator}.
+	 * @param validator rejected features are not written, but go to its reject ShapeFiles.
+	 *                  read validator.getReport() afterwards, and close it.
+	 */
+	public static ImportResult importFeatures(SimpleFeatureSource source, DataStore targetDataStore, String targetTableName,
+	                                          int batchSize, GeometryValidator validator) throws IOException, FactoryException {
+		return importFeatures(source, targetDataStore, targetTableName, () -> batchSize,
+			(featureCount, elapsedNanos) -> {}, Objects.requireNonNull(validator));
+	}
+	
+	/**
+	 * Same as {@link #importFeatures(SimpleFeatureSource, DataStore, String, int)}, but the batch size (=commit interval)
+	 * and the JDBC batch insert size are tuned while importing. See {@link AdaptiveBatchTuner}.
+	 * @param tuner tuner to use. its settled values can be read with tuner.getSettings() afterwards
+	 */
+	public static ImportResult importFeatures(SimpleFeatureSource source, DataStore targetDataStore, String targetTableName,
+	                                          AdaptiveBatchTuner tuner) throws IOException, FactoryException {
+		return importFeatures(source, targetDataStore, targetTableName, tuner::getCommitInterval, tuner, null);
+	}
+	
+	/**
+	 * @param batchSize read every time a new batch is started
+	 * @param validator null = no validation
+	 */
+	private static ImportResult importFeatures(SimpleFeatureSource source, DataStore targetDataStore, String targetTableName,
+	                                           IntSupplier batchSize, BatchListener batchListener,
+	                                           GeometryValidator validator) throws IOException, FactoryException {
+		long start = System.nanoTime();
+		
+		SimpleFeatureType targetSchema = targetDataStore.getSchema(targetTableName);
+		MathTransform transform = findTransform(
+			source.getSchema().getCoordinateReferenceSystem(),
+			targetSchema.getCoordinateReferenceSystem());
+		
+		// Caution! If there is no numeric primary key in the table, this casting fails.
+		SimpleFeatureStore targetStore = (SimpleFeatureStore) targetDataStore.getFeatureSource(targetTableName);
+		Map<String, String> attributeMapping = mapAttributes(source.getSchema(), targetSchema);
+		// geometries are transformed in place, which must not change the features of a memory source
+		boolean copyGeometry = transform != null && !readsNewFeatures(source);
+		
+		long count = 0;
+		CompletableFuture<List<SimpleFeature>> pendingBatch = null;
+		
+		try (SimpleFeatureIterator features = source.getFeatures().features()) {
+			int currentBatchSize = batchSize.getAsInt();
+			List<SimpleFeature> batch = new ArrayList<>(currentBatchSize);
+			while (features.hasNext()) {
+				batch.add(toTargetFeature(features.next(), targetSchema, attributeMapping, copyGeometry));
+				
+				if (batch.size() >= currentBatchSize) {
+					// reproject (and validate) this batch on other threads, while the previous one is being written
+					CompletableFuture<List<SimpleFeature>> preparing = prepareAsync(batch, transform, validator);
+					if (pendingBatch != null) {
+						count += writeBatch(targetStore, batchListener, join(pendingBatch, validator));
+					}
+					pendingBatch = preparing;
+					currentBatchSize = batchSize.getAsInt();
+					batch = new ArrayList<>(currentBatchSize);
+				}
+			}
+			
+			if (pendingBatch != null) {
+				count += writeBatch(targetStore, batchListener, join(pendingBatch, validator));
+			}
+			if (!batch.isEmpty()) {
+				count += writeBatch(targetStore, batchListener, join(prepareAsync(batch, transform, validator), validator));
+			}
+		}
+		
+		return new ImportResult(count, transform != null, Duration.ofNanos(System.nanoTime() - start));
+	}
+	
+	/**
+	 * Find the MathTransform between two CRSs.
+	 * @return null when no reprojection is needed (same CRS, or either CRS is unknown)
+	 * @throws FactoryException occurs when there is no transformation between the two CRSs
+	 */
+	public static MathTransform findTransform(CoordinateReferenceSystem sourceCrs,
+	                                          CoordinateReferenceSystem targetCrs) throws FactoryException {
+		if (sourceCrs == null || targetCrs == null || CRS.equalsIgnoreMetadata(sourceCrs, targetCrs)) {
+			return null;
+		}
+		
+		// the ShapeFile CRS comes from .prj WKT and the table CRS from the EPSG database,
+		// so compare EPSG codes as well; the same code written in two ways must not be reprojected.
+		Integer sourceEpsg = CRS.lookupEpsgCode(sourceCrs, false);
+		Integer targetEpsg = CRS.lookupEpsgCode(targetCrs, false);
+		if (sourceEpsg != null && sourceEpsg.equals(targetEpsg)) {
+			return null;
+		}
+		
+		// Note: set the "org.geotools.referencing.forceXY" system property (see TransformTests),
+		// otherwise EPSG:4326 is treated as (latitude, longitude)!
+		List<CoordinateReferenceSystem> key = List.of(sourceCrs, targetCrs);
+		MathTransform transform = TRANSFORM_CACHE.get(key);
+		if (transform == null) {
+			transform = CRS.findMathTransform(sourceCrs, targetCrs, true);
+			TRANSFORM_CACHE.put(key, transform);
+		}
+		return transform.isIdentity() ? null : transform;
+	}
+	
+	/**
+	 * @return true when every read of the source creates new features (and geometries),
+	 * false when features may be shared with the caller (ex: MemoryDataStore, DataUtilities.source)
+	 */
+	private static boolean readsNewFeatures(SimpleFeatureSource source) {
+		return source instanceof ContentFeatureSource contentSource
+			&& (contentSource.getDataStore() instanceof ShapefileDataStore
+			|| contentSource.getDataStore() instanceof JDBCDataStore);
+	}
+	
+	/**
+	 * Transform every coordinate of the geometry in place. No new geometry (or Coordinate) is created.<br>
+	 * Caution! the geometry itself is changed, copy it first (geometry.copy()) when it is still used elsewhere.
+	 * @param geometry  geometry to transform
+	 * @param transform MathTransform. GeoTools MathTransforms are immutable, so they can be shared between threads.
+	 * @throws TransformException occurs when a coordinate can't be transformed
+	 */
+	public static void transformInPlace(Geometry geometry, MathTransform transform) throws TransformException {
+		if (geometry == null || geometry.isEmpty()) {
+			return;
+		}
+		if (geometry instanceof Point point) {
+			transformInPlace(point.getCoordinateSequence(), transform);
+		} else if (geometry instanceof LineString lineString) {
+			transformInPlace(lineString.getCoordinateSequence(), transform);
+		} else if (geometry instanceof Polygon polygon) {
+			transformInPlace(polygon.getExteriorRing().getCoordinateSequence(), transform);
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				transformInPlace(polygon.getInteriorRingN(i).getCoordinateSequence(), transform);
+			}
+		} else {
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				transformInPlace(geometry.getGeometryN(i), transform);
+			}
+		}
+		// the cached envelope is not valid anymore
+		geometry.geometryChanged();
+	}
+	
+	/**
+	 * Transform the whole sequence with one MathTransform call. (much faster than one call per coordinate)
+	 */
+	private static void transformInPlace(CoordinateSequence sequence, MathTransform transform) throws TransformException {
+		int size = sequence.size();
+		int sourceDimension = transform.getSourceDimensions();
+		int targetDimension = transform.getTargetDimensions();
+		
+		double[] ordinates = new double[size * Math.max(sourceDimension, targetDimension)];
+		for (int i = 0; i < size; i++) {
+			ordinates[i * sourceDimension] = sequence.getX(i);
+			ordinates[i * sourceDimension + 1] = sequence.getY(i);
+			if (sourceDimension > 2) {
+				// a missing (NaN) Z would make X and Y NaN too, so it is transformed as height 0
+				double z = sequence.hasZ() ? sequence.getZ(i) : Double.NaN;
+				ordinates[i * sourceDimension + 2] = Double.isNaN(z) ? 0 : z;
+			}
+		}
+		
+		transform.transform(ordinates, 0, ordinates, 0, size);
+		
+		for (int i = 0; i < size; i++) {
+			sequence.setOrdinate(i, CoordinateSequence.X, ordinates[i * targetDimension]);
+			sequence.setOrdinate(i, CoordinateSequence.Y, ordinates[i * targetDimension + 1]);
+			// a missing Z stays missing (NaN), same as QuantizedGeometryCodec
+			if (targetDimension > 2 && sequence.hasZ() && !Double.isNaN(sequence.getZ(i))) {
+				sequence.setOrdinate(i, CoordinateSequence.Z, ordinates[i * targetDimension + 2]);
+			}
+		}
+	}
+	
+	/**
+	 * Reprojection and validation are done in one parallel pass, so a valid feature is touched by one thread only.
+	 * @return features to write. (rejected features are removed)
+	 */
+	private static CompletableFuture<List<SimpleFeature>> prepareAsync(List<SimpleFeature> batch, MathTransform transform,
+	                                                                   GeometryValidator validator) {
+		if (transform == null && validator == null) {
+			return CompletableFuture.completedFuture(batch);
+		}
+		return CompletableFuture.supplyAsync(() -> batch.parallelStream().filter(feature -> {
+			if (transform != null) {
+				try {
+					transformInPlace((Geometry) feature.getDefaultGeometry(), transform);
+				} catch (TransformException e) {
+					throw new IllegalStateException("Fail to reproject feature : " + feature.getID(), e);
+				}
+			}
+			// validated after the reprojection, because the table gets the reprojected geometry
+			return validator == null || validator.validate(feature);
+		}).toList());
+	}
+	
+	/**
+	 * Wait for the prepared batch. Rejected features are written to the reject ShapeFile here, on the calling thread.
+	 */
+	private static List<SimpleFeature> join(CompletableFuture<List<SimpleFeature>> future,
+	                                        GeometryValidator validator) throws IOException {
+		List<SimpleFeature> prepared;
+		try {
+			prepared = future.join();
+		} catch (CompletionException e) {
+			throw new IOException("Fail to reproject features!", e.getCause());
+		}
+		if (validator != null) {
+			validator.writeRejects();
+		}
+		return prepared;
+	}
+	
+	private static int writeBatch(SimpleFeatureStore targetStore, BatchListener batchListener,
+	                              List<SimpleFeature> batch) throws IOException {
+		long start = System.nanoTime();
+		int written = writeBatch(targetStore, batch);
+		batchListener.batchWritten(written, System.nanoTime() - start);
+		return written;
+	}
+	
+	/**
+	 * write and commit one batch. (one transaction per batch, just like ShapeFileToDatabaseTableAppendingTest)
+	 */
+	static int writeBatch(SimpleFeatureStore targetStore, List<SimpleFeature> batch) throws IOException {
+		Transaction transaction = new DefaultTransaction("POSTGIS_DATA_APPENDING");
+		try {
+			targetStore.setTransaction(transaction);
+			targetStore.addFeatures(DataUtilities.collection(batch));
+			transaction.commit();
+			return batch.size();
+		} catch (IOException | RuntimeException e) {
+			try {transaction.rollback();} catch (IOException ex) {/* ignore */}
+			throw e;
+		} finally {
+			targetStore.setTransaction(Transaction.AUTO_COMMIT);
+			try {transaction.close();} catch (IOException ex) {/* ignore */}
+		}
+	}
+	
+	/**
+	 * target attribute name -> source attribute name. (geometry excluded)
+	 */
+	static Map<String, String> mapAttributes(SimpleFeatureType sourceSchema, SimpleFeatureType targetSchema) {
+		Map<String, String> sourceNames = new HashMap<>();
+		for (AttributeDescriptor descriptor : sourceSchema.getAttributeDescriptors()) {
+			sourceNames.put(descriptor.getLocalName().toLowerCase(Locale.ROOT), descriptor.getLocalName());
+		}
+		
+		Map<String, String> mapping = new HashMap<>();
+		for (AttributeDescriptor descriptor : targetSchema.getAttributeDescriptors()) {
+			String sourceName = sourceNames.get(descriptor.getLocalName().toLowerCase(Locale.ROOT));
+			if (!(descriptor instanceof GeometryDescriptor) && Objects.nonNull(sourceName)) {
+				mapping.put(descriptor.getLocalName(), sourceName);
+			}
+		}
+		return mapping;
+	}
+	
+	/**
+	 * @param copyGeometry true = the target feature gets a copy of the source geometry
+	 */
+	static SimpleFeature toTargetFeature(SimpleFeature sourceFeature, SimpleFeatureType targetSchema,
+	                                     Map<String, String> attributeMapping, boolean copyGeometry) {
+		// Warning! The numeric primary key is not part of the schema, and must never be set.
+		SimpleFeature targetFeature = DataUtilities.template(targetSchema);
+		for (Map.Entry<String, String> entry : attributeMapping.entrySet()) {
+			targetFeature.setAttribute(entry.getKey(), sourceFeature.getAttribute(entry.getValue()));
+		}
+		Geometry geometry = (Geometry) sourceFeature.getDefaultGeometry();
+		targetFeature.setDefaultGeometry(copyGeometry && geometry != null ? geometry.copy() : geometry);
+		return targetFeature;
+	}
+}
@@ -0,0 +1,599 @@
+package coding.toast.geotools.utils;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.util.Converters;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.And;
+import org.opengis.filter.BinaryComparisonOperator;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Not;
+import org.opengis.filter.Or;
+import org.opengis.filter.PropertyIsBetween;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.PropertyIsGreaterThan;
+import org.opengis.filter.PropertyIsGreaterThanOrEqualTo;
+import org.opengis.filter.PropertyIsLessThan;
+import org.opengis.filter.PropertyIsLessThanOrEqualTo;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * <h2>Reads only what a query needs from the .shp and .dbf files</h2>
+ * Used by {@link ShapeFileUtil#query(String, String, List, Filter, Consumer)}.<br>
+ * (1) dbf records have a fixed length, so a field is read at (header length + row * record length + field offset)
+ * and the other fields are never decoded.<br>
+ * (2) simple comparisons (=, &lt;, &lt;=, &gt;, &gt;=, BETWEEN) combined with AND/OR/NOT are tested on the raw dbf bytes,
+ * before any String, Number or feature is created.<br>
+ * (3) the geometry is parsed only for rows that pass. .shp records are walked with their 8-byte headers,
+ * in the same order as the dbf rows.<br>
+ * (4) other filters (LIKE, spatial filters ...) are evaluated by GeoTools on the built feature, as usual.<br>
+ * A .shp or .dbf file larger than one MappedByteBuffer (2 GiB) is rejected with an IOException.
+ */
+class ShapeFileRawQuery {
+	
+	private static final int SHP_HEADER_LENGTH = 100;
+	
+	/**
+	 * one field of the dbf header
+	 * @param offset position in a record. (0 is the deletion flag)
+	 */
+	record DbfField(String name, char type, int offset, int length, int decimalCount) {
+		
+		boolean isNumeric() {
+			return type == 'N' || type == 'n' || type == 'F' || type == 'f';
+		}
+		
+		boolean isCharacter() {
+			return type == 'C' || type == 'c';
+		}
+	}
+	
+	/**
+	 * a predicate on one raw dbf record
+	 */
+	@FunctionalInterface
+	interface RawPredicate {
+		
+		RawPredicate ALL = (dbf, recordStart) -> true;
+		
+		boolean test(ByteBuffer dbf, int recordStart);
+	}
+	
+	private final Path shpPath;
+	private final Path dbfPath;
+	private final SimpleFeatureType schema;
+	private final Charset charset;
+	private final TimeZone timeZone;
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+	
+	ShapeFileRawQuery(Path shpPath, SimpleFeatureType schema, Charset charset, TimeZone timeZone) {
+		this.shpPath = shpPath;
+		this.dbfPath = shpPath.resolveSibling(shpPath.getFileName().toString().replaceFirst("(?i)\\.shp$", ".dbf"));
+		this.schema = schema;
+		this.charset = charset;
+		this.timeZone = timeZone;
+	}
+	
+	/**
+	 * @param propertyNames attributes of the result features. null for all attributes
+	 * @param filter        Filter.INCLUDE for all rows
+	 * @param consumer      receives every matching feature
+	 * @return number of matching features
+	 */
+	long run(List<String> propertyNames, Filter filter, Consumer<SimpleFeature> consumer) throws IOException {
+		try (FileChannel dbfChannel = FileChannel.open(dbfPath, StandardOpenOption.READ);
+		     FileChannel shpChannel = FileChannel.open(shpPath, StandardOpenOption.READ)) {
+			ByteBuffer dbf = map(dbfChannel, dbfPath).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer shp = map(shpChannel, shpPath);
+			
+			int recordCount = dbf.getInt(4);
+			int headerLength = Short.toUnsignedInt(dbf.getShort(8));
+			int recordLength = Short.toUnsignedInt(dbf.getShort(10));
+			Map<String, DbfField> fields = readFields(dbf, headerLength);
+			
+			// split the filter : raw byte predicates first, GeoTools evaluation for the rest
+			List<RawPredicate> rawPredicates = new ArrayList<>();
+			boolean pushedDownCompletely = splitFilter(filter, fields, rawPredicates);
+			RawPredicate rawPredicate = rawPredicates.isEmpty() ? RawPredicate.ALL : allOf(rawPredicates);
+			Filter residual = pushedDownCompletely ? null : filter;
+			
+			SimpleFeatureType resultType = resultType(propertyNames);
+			SimpleFeatureType workingType = resultType;
+			if (residual != null) {
+				// attributes used by the residual filter are decoded too, and dropped afterwards
+				Set<String> workingNames = new LinkedHashSet<>();
+				resultType.getAttributeDescriptors().forEach(descriptor -> workingNames.add(descriptor.getLocalName()));
+				workingNames.addAll(Arrays.asList(DataUtilities.attributeNames(residual, schema)));
+				workingType = subType(workingNames);
+			}
+			
+			List<AttributeDescriptor> descriptors = workingType.getAttributeDescriptors();
+			DbfField[] workingFields = new DbfField[descriptors.size()];
+			boolean[] geometries = new boolean[descriptors.size()];
+			for (int i = 0; i < workingFields.length; i++) {
+				geometries[i] = descriptors.get(i) instanceof GeometryDescriptor;
+				workingFields[i] = fields.get(descriptors.get(i).getLocalName());
+			}
+			
+			Map<ShapeType, ShapeHandler> shapeHandlers = new EnumMap<>(ShapeType.class);
+			byte[] scratch = new byte[recordLength];
+			String typeName = schema.getTypeName();
+			long matched = 0;
+			long shpPosition = SHP_HEADER_LENGTH;
+			
+			for (int row = 0; row < recordCount; row++) {
+				long recordOffset = headerLength + (long) row * recordLength;
+				if (recordOffset + recordLength > dbf.limit()) {
+					throw new IOException(dbfPath + " is shorter than its header says (" + recordCount + " records)");
+				}
+				int recordStart = (int) recordOffset;
+				// past the end of the .shp : no geometry (readGeometry checks the limit)
+				int shpRecordPosition = (int) Math.min(shpPosition, shp.limit());
+				if (shpPosition + 8 <= shp.limit()) {
+					// record header : record number, content length (16-bit words), both big endian
+					shpPosition += 8 + shp.order(ByteOrder.BIG_ENDIAN).getInt(shpRecordPosition + 4) * 2L;
+				}
+				
+				// '*' = deleted row
+				if (dbf.get(recordStart) == '*' || !rawPredicate.test(dbf, recordStart)) {
+					continue;
+				}
+				
+				Object[] values = new Object[workingFields.length];
+				for (int i = 0; i < values.length; i++) {
+					if (geometries[i]) {
+						values[i] = readGeometry(shp, shpRecordPosition, shapeHandlers);
+					} else if (workingFields[i] != null) {
+						values[i] = readValue(dbf, recordStart, workingFields[i], descriptors.get(i).getType().getBinding(), scratch);
+					}
+				}
+				SimpleFeature feature = SimpleFeatureBuilder.build(workingType, values, typeName + "." + (row + 1));
+				
+				if (residual != null) {
+					if (!residual.evaluate(feature)) {
+						continue;
+					}
+					if (workingType != resultType) {
+						feature = SimpleFeatureBuilder.retype(feature, resultType);
+					}
+				}
+				consumer.accept(feature);
+				matched++;
+			}
+			return matched;
+		}
+	}
+	
+	/**
+	 * @throws IOException when the file doesn't fit in one MappedByteBuffer
+	 */
+	private static ByteBuffer map(FileChannel channel, Path path) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException(path + " is larger than 2 GiB (" + size + " bytes), read it with the ShapefileDataStore instead!");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+	
+	/**
+	 * @return feature type of the result features
+	 */
+	SimpleFeatureType resultType(List<String> propertyNames) throws IOException {
+		return subType(propertyNames == null ? null : new LinkedHashSet<>(propertyNames));
+	}
+	
+	private SimpleFeatureType subType(Set<String> names) throws IOException {
+		if (names == null) {
+			return schema;
+		}
+		try {
+			// keep the schema order, like Query.setPropertyNames does
+			List<String> ordered = new ArrayList<>();
+			for (AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+				if (names.contains(descriptor.getLocalName())) {
+					ordered.add(descriptor.getLocalName());
+				}
+			}
+			if (ordered.size() != names.size()) {
+				throw new IllegalArgumentException("Unknown attribute in " + names + ", ShapeFile attributes : "
+					+ Arrays.toString(DataUtilities.attributeNames(schema)));
+			}
+			return DataUtilities.createSubType(schema, ordered.toArray(String[]::new));
+		} catch (SchemaException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * field descriptors are 32 bytes each, after the 32-byte file header, until 0x0D
+	 */
+	private Map<String, DbfField> readFields(ByteBuffer dbf, int headerLength) {
+		Map<String, DbfField> fields = new LinkedHashMap<>();
+		int offset = 1; // deletion flag
+		for (int position = 32; position + 32 <= headerLength && dbf.get(position) != 0x0D; position += 32) {
+			byte[] nameBytes = new byte[11];
+			dbf.get(position, nameBytes);
+			int nameLength = 0;
+			while (nameLength < nameBytes.length && nameBytes[nameLength] != 0) {
+				nameLength++;
+			}
+			String name = new String(nameBytes, 0, nameLength, charset).trim();
+			char type = (char) dbf.get(position + 11);
+			int length = Byte.toUnsignedInt(dbf.get(position + 16));
+			int decimalCount = Byte.toUnsignedInt(dbf.get(position + 17));
+			fields.put(name, new DbfField(name, type, offset, length, decimalCount));
+			offset += length;
+		}
+		return fields;
+	}
+	
+	private Object readGeometry(ByteBuffer shp, int shpRecordPosition, Map<ShapeType, ShapeHandler> shapeHandlers) throws IOException {
+		if (shpRecordPosition + 12 > shp.limit()) {
+			return null;
+		}
+		ByteBuffer content = shp.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		content.position(shpRecordPosition + 8);
+		ShapeType shapeType = ShapeType.forID(content.getInt());
+		if (shapeType == ShapeType.NULL || shapeType == ShapeType.UNDEFINED) {
+			return null;
+		}
+		ShapeHandler handler = shapeHandlers.get(shapeType);
+		if (handler == null) {
+			handler = shapeType.getShapeHandler(geometryFactory);
+			shapeHandlers.put(shapeType, handler);
+		}
+		return handler.read(content, shapeType, false);
+	}
+	
+	/**
+	 * decode one field, to the same Java type as DbaseFileReader
+	 */
+	private Object readValue(ByteBuffer dbf, int recordStart, DbfField field, Class<?> binding, byte[] scratch) {
+		int start = recordStart + field.offset();
+		if (field.isNumeric()) {
+			if (binding == Integer.class || binding == Long.class) {
+				Long value = parseLong(dbf, start, field.length());
+				return value == null ? null : binding == Integer.class ? (Object) value.intValue() : value;
+			}
+			double value = parseDouble(dbf, start, field.length());
+			if (Double.isNaN(value)) {
+				return null;
+			}
+			return binding == Double.class ? value : Converters.convert(BigDecimal.valueOf(value), binding);
+		}
+		
+		int[] range = trim(dbf, start, field.length());
+		int length = range[1] - range[0];
+		dbf.get(range[0], scratch, 0, length);
+		if (field.isCharacter()) {
+			return new String(scratch, 0, length, charset);
+		}
+		if (length == 0) {
+			return null;
+		}
+		String text = new String(scratch, 0, length, charset);
+		return switch (field.type()) {
+			case 'D', 'd' -> parseDate(text);
+			case 'L', 'l' -> switch (text.charAt(0)) {
+				case 'T', 't', 'Y', 'y' -> Boolean.TRUE;
+				case 'F', 'f', 'N', 'n' -> Boolean.FALSE;
+				default -> null;
+			};
+			default -> Converters.convert(text, binding);
+		};
+	}
+	
+	private Date parseDate(String text) {
+		if (text.length() != 8 || text.equals("00000000")) {
+			return null;
+		}
+		try {
+			Calendar calendar = Calendar.getInstance(timeZone, Locale.US);
+			calendar.clear();
+			calendar.set(Integer.parseInt(text.substring(0, 4)),
+				Integer.parseInt(text.substring(4, 6)) - 1,
+				Integer.parseInt(text.substring(6, 8)));
+			return calendar.getTime();
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return [start, end) of the field without leading / trailing spaces and NUL bytes
+	 */
+	private static int[] trim(ByteBuffer dbf, int start, int length) {
+		int end = start + length;
+		while (start < end && (dbf.get(start) == ' ' || dbf.get(start) == 0)) {
+			start++;
+		}
+		while (end > start && (dbf.get(end - 1) == ' ' || dbf.get(end - 1) == 0)) {
+			end--;
+		}
+		return new int[]{start, end};
+	}
+	
+	/**
+	 * @return null for an empty (or '*' filled) field
+	 */
+	private static Long parseLong(ByteBuffer dbf, int start, int length) {
+		int[] range = trim(dbf, start, length);
+		if (range[0] == range[1]) {
+			return null;
+		}
+		int position = range[0];
+		boolean negative = dbf.get(position) == '-';
+		if (negative || dbf.get(position) == '+') {
+			position++;
+		}
+		if (range[1] - position > 18 || position == range[1]) {
+			return parseLongSlow(dbf, range);
+		}
+		long value = 0;
+		for (; position < range[1]; position++) {
+			int digit = dbf.get(position) - '0';
+			if (digit < 0 || digit > 9) {
+				return parseLongSlow(dbf, range);
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+	
+	private static Long parseLongSlow(ByteBuffer dbf, int[] range) {
+		double value = parseDoubleSlow(dbf, range);
+		return Double.isNaN(value) ? null : (long) value;
+	}
+	
+	/**
+	 * Parse an ASCII number without creating a String.
+	 * @return NaN for an empty (or '*' filled) field
+	 */
+	static double parseDouble(ByteBuffer dbf, int start, int length) {
+		int[] range = trim(dbf, start, length);
+		if (range[0] == range[1]) {
+			return Double.NaN;
+		}
+		int position = range[0];
+		boolean negative = dbf.get(position) == '-';
+		if (negative || dbf.get(position) == '+') {
+			position++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+		for (; position < range[1]; position++) {
+			byte b = dbf.get(position);
+			if (b == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else if (b >= '0' && b <= '9' && digits < 15) {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+			} else {
+				// exponent, more digits than a double keeps exactly, or garbage
+				return parseDoubleSlow(dbf, range);
+			}
+		}
+		if (digits == 0) {
+			return Double.NaN;
+		}
+		double value = fractionDigits > 0 ? mantissa / Math.pow(10, fractionDigits) : mantissa;
+		return negative ? -value : value;
+	}
+	
+	private static double parseDoubleSlow(ByteBuffer dbf, int[] range) {
+		byte[] bytes = new byte[range[1] - range[0]];
+		dbf.get(range[0], bytes);
+		try {
+			return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+	
+	/**
+	 * Collect the raw predicates of the filter (every part of a top level AND is tried on its own).
+	 * @return true when the whole filter became raw predicates
+	 */
+	private boolean splitFilter(Filter filter, Map<String, DbfField> fields, List<RawPredicate> rawPredicates) {
+		if (filter == null || filter == Filter.INCLUDE) {
+			return true;
+		}
+		if (filter == Filter.EXCLUDE) {
+			rawPredicates.add((dbf, recordStart) -> false);
+			return true;
+		}
+		if (filter instanceof And and) {
+			boolean all = true;
+			for (Filter child : and.getChildren()) {
+				all &= splitFilter(child, fields, rawPredicates);
+			}
+			return all;
+		}
+		RawPredicate predicate = compile(filter, fields);
+		if (predicate == null) {
+			return false;
+		}
+		rawPredicates.add(predicate);
+		return true;
+	}
+	
+	/**
+	 * @return null when the filter can't be tested on raw bytes
+	 */
+	private RawPredicate compile(Filter filter, Map<String, DbfField> fields) {
+		if (filter instanceof And and) {
+			List<RawPredicate> children = compileAll(and.getChildren(), fields);
+			return children == null ? null : allOf(children);
+		}
+		if (filter instanceof Or or) {
+			List<RawPredicate> children = compileAll(or.getChildren(), fields);
+			return children == null ? null : (dbf, recordStart) -> {
+				for (RawPredicate child : children) {
+					if (child.test(dbf, recordStart)) {
+						return true;
+					}
+				}
+				return false;
+			};
+		}
+		if (filter instanceof Not not) {
+			RawPredicate child = compile(not.getFilter(), fields);
+			return child == null ? null : (dbf, recordStart) -> !child.test(dbf, recordStart);
+		}
+		if (filter instanceof PropertyIsBetween between) {
+			DbfField field = numericField(between.getExpression(), fields);
+			Double lower = numericLiteral(between.getLowerBoundary());
+			Double upper = numericLiteral(between.getUpperBoundary());
+			if (field == null || lower == null || upper == null) {
+				return null;
+			}
+			return (dbf, recordStart) -> {
+				double value = parseDouble(dbf, recordStart + field.offset(), field.length());
+				return value >= lower && value <= upper;
+			};
+		}
+		if (filter instanceof BinaryComparisonOperator comparison) {
+			return compileComparison(comparison, fields);
+		}
+		return null;
+	}
+	
+	private List<RawPredicate> compileAll(List<Filter> filters, Map<String, DbfField> fields) {
+		List<RawPredicate> predicates = new ArrayList<>();
+		for (Filter child : filters) {
+			RawPredicate predicate = compile(child, fields);
+			if (predicate == null) {
+				return null;
+			}
+			predicates.add(predicate);
+		}
+		return predicates;
+	}
+	
+	private RawPredicate compileComparison(BinaryComparisonOperator comparison, Map<String, DbfField> fields) {
+		// property on the left, literal on the right. (5 < x is x > 5)
+		Expression property = comparison.getExpression1();
+		Expression literal = comparison.getExpression2();
+		boolean swapped = false;
+		if (property instanceof Literal && literal instanceof PropertyName) {
+			property = comparison.getExpression2();
+			literal = comparison.getExpression1();
+			swapped = true;
+		}
+		if (!(property instanceof PropertyName propertyName) || !(literal instanceof Literal)) {
+			return null;
+		}
+		DbfField field = fields.get(propertyName.getPropertyName());
+		if (field == null) {
+			return null;
+		}
+		
+		if (field.isCharacter()) {
+			// only case-sensitive equality, String ordering is not the same as byte ordering.
+			// the dbf padding is stripped like readValue does, the literal is compared as it is. ('a ' never matches 'a')
+			if (!(comparison instanceof PropertyIsEqualTo) || !comparison.isMatchingCase()
+				|| !(((Literal) literal).getValue() instanceof String text)) {
+				return null;
+			}
+			byte[] expected = text.getBytes(charset);
+			return (dbf, recordStart) -> {
+				int[] range = trim(dbf, recordStart + field.offset(), field.length());
+				if (range[1] - range[0] != expected.length) {
+					return false;
+				}
+				for (int i = 0; i < expected.length; i++) {
+					if (dbf.get(range[0] + i) != expected[i]) {
+						return false;
+					}
+				}
+				return true;
+			};
+		}
+		
+		Double expected = field.isNumeric() ? numericLiteral(literal) : null;
+		if (expected == null) {
+			return null;
+		}
+		// NaN (empty field) fails every comparison, like a null attribute in GeoTools
+		if (comparison instanceof PropertyIsEqualTo) {
+			return (dbf, recordStart) -> parseDouble(dbf, recordStart + field.offset(), field.length()) == expected;
+		}
+		// "5 < x" is read as "x > 5"
+		boolean greaterThan = swapped ? comparison instanceof PropertyIsLessThan : comparison instanceof PropertyIsGreaterThan;
+		boolean greaterThanOrEqual = swapped ? comparison instanceof PropertyIsLessThanOrEqualTo : comparison instanceof PropertyIsGreaterThanOrEqualTo;
+		boolean lessThan = swapped ? comparison instanceof PropertyIsGreaterThan : comparison instanceof PropertyIsLessThan;
+		boolean lessThanOrEqual = swapped ? comparison instanceof PropertyIsGreaterThanOrEqualTo : comparison instanceof PropertyIsLessThanOrEqualTo;
+		if (greaterThan) {
+			return (dbf, recordStart) -> parseDouble(dbf, recordStart + field.offset(), field.length()) > expected;
+		}
+		if (greaterThanOrEqual) {
+			return (dbf, recordStart) -> parseDouble(dbf, recordStart + field.offset(), field.length()) >= expected;
+		}
+		if (lessThan) {
+			return (dbf, recordStart) -> parseDouble(dbf, recordStart + field.offset(), field.length()) < expected;
+		}
+		if (lessThanOrEqual) {
+			return (dbf, recordStart) -> parseDouble(dbf, recordStart + field.offset(), field.length()) <= expected;
+		}
+		// PropertyIsNotEqualTo : left to GeoTools (null handling)
+		return null;
+	}
+	
+	private static DbfField numericField(Expression expression, Map<String, DbfField> fields) {
+		if (expression instanceof PropertyName propertyName) {
+			DbfField field = fields.get(propertyName.getPropertyName());
+			return field != null && field.isNumeric() ? field : null;
+		}
+		return null;
+	}
+	
+	private static Double numericLiteral(Expression expression) {
+		if (!(expression instanceof Literal literal) || literal.getValue() == null) {
+			return null;
+		}
+		if (literal.getValue() instanceof Number number) {
+			return number.doubleValue();
+		}
+		return Converters.convert(literal.getValue(), Double.class);
+	}
+	
+	private static RawPredicate allOf(List<RawPredicate> predicates) {
+		if (predicates.size() == 1) {
+			return predicates.get(0);
+		}
+		RawPredicate[] array = predicates.toArray(RawPredicate[]::new);
+		return (dbf, recordStart) -> {
+			for (RawPredicate predicate : array) {
+				if (!predicate.test(dbf, recordStart)) {
+					return false;
+				}
+			}
+			return true;
+		};
+	}
+}
@@ -1,19 +1,40 @@
 package coding.toast.geotools.utils;
 
 import org.geotools.data.DataStoreFinder;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
 import org.springframework.util.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * ShapeFile Util for Geotools development
@@ -26,6 +47,11 @@ public class ShapeFileUtil {
 	 */
 	private static final String FORCE_ENCODING = "UTF-8";
 	
+	/**
+	 * "jar:file:...!/" url of a zip -&gt; number of DataStores reading it
+	 */
+	private static final Map<String, Integer> OPEN_ZIP_DATASTORES = new HashMap<>();
+	
 	
 	public static ShapefileDataStore getShapeFileDataStore(String shapeFilePath, String defaultEncoding) throws IOException {
 		URL url = new File(shapeFilePath)
@@ -71,4 +97,166 @@ public class ShapeFileUtil {
 		return encoding.trim();
 	}
 	
+	/**
+	 * Open a ShapeFile inside a zip file, without extracting it.<br>
+	 * The zip entries are read through a "jar:file:...!/entry.shp" URL. The JDK finds them with the central directory
+	 * of the zip, and inflates them while GeoTools reads, so no temp copy is written.<br>
+	 * The JDK keeps the zip open in its jar cache for such URLs. It is closed when the last DataStore of the zip
+	 * is disposed, so the zip can be deleted or replaced afterwards.<br>
+	 * Note : the DataStore is read-only, and entry names must be UTF-8 (or ASCII), like in a jar file.
+	 * @param zipFilePath     The path of the zip file
+	 * @param shpEntryName    .shp entry in the zip (ex: "data/sample.shp"), see {@link #findShapeFileEntries(String)}
+	 * @param defaultEncoding used when there is no cpg / cst entry
+	 * @throws IOException occurs when the zip can't be read
+	 */
+	public static ShapefileDataStore getShapeFileDataStore(String zipFilePath, String shpEntryName,
+	                                                       String defaultEncoding) throws IOException {
+		String shapeFileEncoding;
+		try (ZipFile zipFile = new ZipFile(zipFilePath, StandardCharsets.UTF_8)) {
+			if (zipFile.getEntry(shpEntryName) == null) {
+				throw new IOException("No entry [" + shpEntryName + "] in " + zipFilePath);
+			}
+			shapeFileEncoding = readShapeFileEncoding(zipFile, shpEntryName, defaultEncoding);
+		}
+		
+		URL zipRootUrl = new URL("jar:" + Paths.get(zipFilePath).toAbsolutePath().toUri() + "!/");
+		URL url;
+		try {
+			// the entry name is percent-encoded, the JDK decodes it again when it looks up the entry
+			String encodedEntryName = new URI(null, null, shpEntryName, null).toASCIIString();
+			url = new URL(zipRootUrl + encodedEntryName);
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid entry name : " + shpEntryName, e);
+		}
+		
+		synchronized (OPEN_ZIP_DATASTORES) {
+			OPEN_ZIP_DATASTORES.merge(zipRootUrl.toString(), 1, Integer::sum);
+		}
+		ShapefileDataStore dataStore = new ShapefileDataStore(url) {
+			
+			private final AtomicBoolean disposed = new AtomicBoolean();
+			
+			@Override
+			public void dispose() {
+				super.dispose();
+				if (disposed.compareAndSet(false, true)) {
+					releaseZip(zipRootUrl);
+				}
+			}
+		};
+		dataStore.setCharset(Charset.forName(shapeFileEncoding));
+		return dataStore;
+	}
+	
+	/**
+	 * Close the cached zip when no DataStore of it is left.<br>
+	 * Closing the JarFile of a cached connection also removes it from the JDK jar cache.
+	 */
+	private static void releaseZip(URL zipRootUrl) {
+		synchronized (OPEN_ZIP_DATASTORES) {
+			if (OPEN_ZIP_DATASTORES.merge(zipRootUrl.toString(), -1, Integer::sum) > 0) {
+				return;
+			}
+			OPEN_ZIP_DATASTORES.remove(zipRootUrl.toString());
+			try {
+				URLConnection connection = zipRootUrl.openConnection();
+				if (connection instanceof JarURLConnection jarConnection) {
+					jarConnection.getJarFile().close();
+				}
+			} catch (IOException e) {
+				// already closed or deleted, nothing to release
+			}
+		}
+	}
+	
+	/**
+	 * List the ShapeFiles inside a zip file. Only the central directory at the end of the zip is read.
+	 * @param zipFilePath The path of the zip file
+	 * @return .shp entry names which also have a .dbf entry (ex: ["a.shp", "dir/b.shp"])
+	 * @throws IOException occurs when the zip can't be read
+	 */
+	public static List<String> findShapeFileEntries(String zipFilePath) throws IOException {
+		List<String> shpEntryNames = new ArrayList<>();
+		try (ZipFile zipFile = new ZipFile(zipFilePath, StandardCharsets.UTF_8)) {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (!entry.isDirectory() && name.toLowerCase(Locale.ROOT).endsWith(".shp")
+					&& findSibling(zipFile, name, "dbf") != null) {
+					shpEntryNames.add(name);
+				}
+			}
+		}
+		return shpEntryNames;
+	}
+	
+	/**
+	 * Same as {@link #readShapeFileEncoding(String, String)}, with the cpg / cst entries of a zip file.
+	 */
+	public static String readShapeFileEncoding(ZipFile zipFile, String shpEntryName, String defaultEncoding) throws IOException {
+		ZipEntry cpgEntry = findSibling(zipFile, shpEntryName, "cpg");
+		ZipEntry cstEntry = findSibling(zipFile, shpEntryName, "cst");
+		
+		ZipEntry encodingEntry = cpgEntry != null ? cpgEntry : cstEntry;
+		if (encodingEntry == null) {
+			return StringUtils.hasText(defaultEncoding) ? defaultEncoding.trim() : FORCE_ENCODING;
+		}
+		try (InputStream inputStream = zipFile.getInputStream(encodingEntry)) {
+			return new String(inputStream.readAllBytes()).trim();
+		}
+	}
+	
+	/**
+	 * @return entry with the same name and another extension (lower or upper case), null if there is none
+	 */
+	private static ZipEntry findSibling(ZipFile zipFile, String shpEntryName, String extension) {
+		String pureName = StringUtils.stripFilenameExtension(shpEntryName);
+		ZipEntry entry = zipFile.getEntry(pureName + "." + extension);
+		return entry != null ? entry : zipFile.getEntry(pureName + "." + extension.toUpperCase(Locale.ROOT));
+	}
+	
+	/**
+	 * Read only some attributes of the rows matching a filter.<br>
+	 * Unlike shapeFileDataStore.getFeatureSource().getFeatures(query), unused dbf fields are never decoded,
+	 * simple comparisons are tested on the raw dbf bytes, and geometries are parsed only for matching rows.
+	 * Other filters (LIKE, BBOX ...) still work, they are evaluated on the built feature.
+	 * @param shapeFilePath   The path of the shapefile
+	 * @param defaultEncoding used when there is no cpg / cst file (see readShapeFileEncoding)
+	 * @param propertyNames   attributes to read (ex: List.of("the_geom", "name")). null for all attributes
+	 * @param filter          Filter.INCLUDE for all rows
+	 * @param consumer        receives every matching feature
+	 * @return number of matching features
+	 * @throws IOException occurs when reading fails
+	 */
+	public static long query(String shapeFilePath, String defaultEncoding, List<String> propertyNames,
+	                         Filter filter, Consumer<SimpleFeature> consumer) throws IOException {
+		return rawQuery(shapeFilePath, defaultEncoding).run(propertyNames, filter, consumer);
+	}
+	
+	/**
+	 * Same as {@link #query(String, String, List, Filter, Consumer)}, with an ECQL filter (ex: "id &gt; 100 AND name = 'a'").
+	 * The result is kept in memory.
+	 * @throws CQLException occurs when the filter text is wrong
+	 */
+	public static SimpleFeatureCollection query(String shapeFilePath, String defaultEncoding, List<String> propertyNames,
+	                                            String cqlFilter) throws IOException, CQLException {
+		Filter filter = StringUtils.hasText(cqlFilter) ? ECQL.toFilter(cqlFilter) : Filter.INCLUDE;
+		ShapeFileRawQuery rawQuery = rawQuery(shapeFilePath, defaultEncoding);
+		ListFeatureCollection features = new ListFeatureCollection(rawQuery.resultType(propertyNames));
+		rawQuery.run(propertyNames, filter, features::add);
+		return features;
+	}
+	
+	private static ShapeFileRawQuery rawQuery(String shapeFilePath, String defaultEncoding) throws IOException {
+		// the DataStore is only used for the schema (attribute types, CRS), the rows are read by ShapeFileRawQuery
+		ShapefileDataStore shapeFileDataStore = getShapeFileDataStore(shapeFilePath, defaultEncoding);
+		try {
+			return new ShapeFileRawQuery(Paths.get(shapeFilePath), shapeFileDataStore.getSchema(),
+				shapeFileDataStore.getCharset(), shapeFileDataStore.getTimeZone());
+		} finally {
+			shapeFileDataStore.dispose();
+		}
+	}
+	
 }
@@ -0,0 +1,211 @@
+package coding.toast.geotools.utils;
+
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.*;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * <h2>Writes ShapeFiles filled with random features, for load tests</h2>
+ * Features are generated and written one by one, so millions of features don't need more heap than a few.<br>
+ * (1) geometries are spread over the area of use of the CRS (ex: EPSG:5186 = middle of Korea).<br>
+ * (2) text attributes mix Hangul and ASCII, and are cut to fit the dbf field width in the chosen encoding.<br>
+ * (3) the encoding is written to a .cpg file, like {@link ShapeFileExportUtil}.<br>
+ * The same seed always writes the same file.
+ */
+public class SyntheticShapeFileUtil {
+	
+	private static final GeometryFactory GEOMETRY_FACTORY = JTSFactoryFinder.getGeometryFactory();
+	
+	private static final String HANGUL = "가나다라마바사아자차카타파하서울부산대구인천광주대전울산세종";
+	
+	/**
+	 * What to generate.
+	 * @param geometryType   Point, LineString, Polygon or their Multi types
+	 * @param featureCount   number of features
+	 * @param vertexCount    vertices per LineString (2 or more) / Polygon ring (4 or more), ignored for Point and MultiPoint
+	 * @param textAttributes number of text attributes (text_1, text_2 ...)
+	 * @param textWidth      dbf field width (bytes) of every text attribute, 254 at most
+	 * @param crs            CRS written to the .prj file
+	 * @param encoding       dbf encoding (ex: EUC-KR, UTF-8)
+	 * @param seed           random seed
+	 */
+	public record Spec(Class<? extends Geometry> geometryType, long featureCount, int vertexCount,
+	                   int textAttributes, int textWidth, CoordinateReferenceSystem crs, Charset encoding, long seed) {
+		
+		public Spec {
+			if (textWidth < 1 || textWidth > 254) {
+				throw new IllegalArgumentException("dbf text width must be between 1 and 254 : " + textWidth);
+			}
+			// vertexCount is checked per geometry family, points don't use it
+			if ((geometryType == LineString.class || geometryType == MultiLineString.class) && vertexCount < 2) {
+				throw new IllegalArgumentException("a line needs at least 2 vertices : " + vertexCount);
+			}
+			if ((geometryType == Polygon.class || geometryType == MultiPolygon.class) && vertexCount < 4) {
+				throw new IllegalArgumentException("a polygon ring needs at least 4 vertices : " + vertexCount);
+			}
+		}
+	}
+	
+	/**
+	 * Write a ShapeFile (.shp/.shx/.dbf/.prj/.cpg).
+	 * @param shapeFilePath .shp file path. existing files are overwritten
+	 * @param spec          what to generate
+	 * @return the ShapeFile schema
+	 * @throws IOException occurs when writing fails
+	 */
+	public static SimpleFeatureType generate(Path shapeFilePath, Spec spec) throws IOException {
+		SimpleFeatureType schema = createSchema(shapeFilePath, spec);
+		
+		Map<String, Serializable> params = new HashMap<>();
+		params.put(ShapefileDataStoreFactory.URLP.key, shapeFilePath.toUri().toURL());
+		params.put(ShapefileDataStoreFactory.CREATE_SPATIAL_INDEX.key, Boolean.FALSE);
+		params.put(ShapefileDataStoreFactory.DBFCHARSET.key, spec.encoding().name());
+		
+		ShapefileDataStore dataStore = (ShapefileDataStore) new ShapefileDataStoreFactory().createNewDataStore(params);
+		dataStore.setCharset(spec.encoding());
+		try {
+			dataStore.createSchema(schema);
+			Path cpgPath = shapeFilePath.resolveSibling(
+				shapeFilePath.getFileName().toString().replaceFirst("\\.shp$", ".cpg"));
+			Files.writeString(cpgPath, spec.encoding().name(), StandardCharsets.US_ASCII);
+			
+			SplittableRandom random = new SplittableRandom(spec.seed());
+			Envelope bounds = areaOf(spec.crs());
+			TextGenerator textGenerator = new TextGenerator(spec.encoding(), spec.textWidth());
+			
+			try (FeatureWriter<SimpleFeatureType, SimpleFeature> writer =
+				     dataStore.getFeatureWriterAppend(dataStore.getTypeNames()[0], Transaction.AUTO_COMMIT)) {
+				for (long i = 0; i < spec.featureCount(); i++) {
+					SimpleFeature feature = writer.next();
+					feature.setDefaultGeometry(randomGeometry(spec, bounds, random));
+					feature.setAttribute("id", i);
+					feature.setAttribute("value", random.nextDouble(0, 1_000_000));
+					for (int t = 1; t <= spec.textAttributes(); t++) {
+						feature.setAttribute("text_" + t, textGenerator.next(random));
+					}
+					writer.write();
+				}
+			}
+		} finally {
+			dataStore.dispose();
+		}
+		return schema;
+	}
+	
+	private static SimpleFeatureType createSchema(Path shapeFilePath, Spec spec) {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(shapeFilePath.getFileName().toString().replaceFirst("\\.shp$", ""));
+		builder.setCRS(spec.crs());
+		builder.add("the_geom", spec.geometryType());
+		builder.add("id", Long.class);
+		builder.add("value", Double.class);
+		for (int t = 1; t <= spec.textAttributes(); t++) {
+			builder.length(spec.textWidth()).add("text_" + t, String.class);
+		}
+		return builder.buildFeatureType();
+	}
+	
+	/**
+	 * area of use of the CRS, in CRS units. shrunk a little to stay away from the edges.
+	 */
+	private static Envelope areaOf(CoordinateReferenceSystem crs) {
+		org.opengis.geometry.Envelope envelope = CRS.getEnvelope(crs);
+		if (envelope == null) {
+			throw new IllegalArgumentException("CRS has no area of use : " + crs.getName());
+		}
+		Envelope bounds = new Envelope(
+			envelope.getMinimum(0), envelope.getMaximum(0), envelope.getMinimum(1), envelope.getMaximum(1));
+		bounds.expandBy(-bounds.getWidth() * 0.05, -bounds.getHeight() * 0.05);
+		return bounds;
+	}
+	
+	private static Geometry randomGeometry(Spec spec, Envelope bounds, SplittableRandom random) {
+		Coordinate origin = new Coordinate(
+			random.nextDouble(bounds.getMinX(), bounds.getMaxX()),
+			random.nextDouble(bounds.getMinY(), bounds.getMaxY()));
+		// lines and polygons are about 1/10,000 of the area wide
+		double size = Math.min(bounds.getWidth(), bounds.getHeight()) / 10_000;
+		
+		Class<? extends Geometry> type = spec.geometryType();
+		if (type == Point.class || type == MultiPoint.class) {
+			Point point = GEOMETRY_FACTORY.createPoint(origin);
+			return type == Point.class ? point : GEOMETRY_FACTORY.createMultiPoint(new Point[]{point});
+		}
+		if (type == LineString.class || type == MultiLineString.class) {
+			Coordinate[] coordinates = new Coordinate[spec.vertexCount()];
+			coordinates[0] = origin;
+			for (int i = 1; i < coordinates.length; i++) {
+				coordinates[i] = new Coordinate(
+					coordinates[i - 1].x + random.nextDouble(-size, size),
+					coordinates[i - 1].y + random.nextDouble(-size, size));
+			}
+			LineString line = GEOMETRY_FACTORY.createLineString(coordinates);
+			return type == LineString.class ? line : GEOMETRY_FACTORY.createMultiLineString(new LineString[]{line});
+		}
+		if (type == Polygon.class || type == MultiPolygon.class) {
+			// star-shaped around the origin, so the ring never crosses itself
+			Coordinate[] ring = new Coordinate[spec.vertexCount()];
+			for (int i = 0; i < ring.length - 1; i++) {
+				double angle = 2 * Math.PI * i / (ring.length - 1);
+				double radius = size * random.nextDouble(0.5, 1);
+				ring[i] = new Coordinate(origin.x + radius * Math.cos(angle), origin.y + radius * Math.sin(angle));
+			}
+			ring[ring.length - 1] = ring[0].copy();
+			Polygon polygon = GEOMETRY_FACTORY.createPolygon(ring);
+			return type == Polygon.class ? polygon : GEOMETRY_FACTORY.createMultiPolygon(new Polygon[]{polygon});
+		}
+		throw new IllegalArgumentException("Unsupported geometry type : " + type.getSimpleName());
+	}
+	
+	/**
+	 * Random text that fits the dbf field width in the target encoding.<br>
+	 * DbaseFileWriter cuts longer strings by bytes, which would break a multibyte character in two.
+	 */
+	private static class TextGenerator {
+		
+		private final int width;
+		private final int hangulBytes;
+		
+		TextGenerator(Charset encoding, int width) {
+			CharsetEncoder encoder = encoding.newEncoder();
+			this.width = width;
+			// 2 bytes for EUC-KR, 3 bytes for UTF-8, 0 when the encoding has no Hangul (ex: ISO-8859-1)
+			this.hangulBytes = encoder.canEncode(HANGUL) ? (int) Math.ceil(encoder.maxBytesPerChar()) : 0;
+		}
+		
+		String next(SplittableRandom random) {
+			StringBuilder text = new StringBuilder(width);
+			int bytes = 0;
+			int length = random.nextInt(1, width + 1);
+			while (bytes < length) {
+				if (hangulBytes > 0 && bytes + hangulBytes <= length && random.nextBoolean()) {
+					text.append(HANGUL.charAt(random.nextInt(HANGUL.length())));
+					bytes += hangulBytes;
+				} else {
+					text.append((char) ('a' + random.nextInt(26)));
+					bytes++;
+				}
+			}
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package coding.toast.geotools.web;
+
+import coding.toast.geotools.GeotoolsPlaygroundApplication;
+import coding.toast.geotools.utils.LoadTestUtil;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.web.servlet.function.RouterFunction;
+import org.springframework.web.servlet.function.RouterFunctions;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Load test of the Tomcat thread pool against virtual threads (geotools.web.virtual-threads).<br>
+ * (1) /load-test/remote : a 50ms blocking call without a connection limit (ex: a WFS request).
+ * The Tomcat pool serves 200 of them at once, virtual threads serve as many as the clients send.<br>
+ * (2) /load-test/datastore : a 20ms query on a simulated DataStore with 10 connections.
+ * Requests above 10 queue in {@link DataStoreAdmission}, and get 503 after 2 seconds.<br>
+ * The p99 of /remote with virtual threads must not be worse than with the Tomcat pool.<br>
+ * Needs a Java 21+ JDK, it is skipped on the Java 17 toolchain of this project.
+ * The virtual-thread-load-test Maven profile runs it on a JDK 21 (and fails instead of skipping without one) :<br>
+ * ./mvnw test -Pvirtual-thread-load-test -Djdk21.home=/path/to/jdk-21<br>
+ * Request count and concurrency : -DvirtualThreadLoad.requests=20000 -DvirtualThreadLoad.concurrency=1000
+ */
+public class VirtualThreadLoadTest {
+	
+	private static final int REQUESTS = Integer.getInteger("virtualThreadLoad.requests", 20_000);
+	
+	private static final int CONCURRENCY = Integer.getInteger("virtualThreadLoad.concurrency", 1_000);
+	
+	/**
+	 * set by the virtual-thread-load-test profile, so a wrong JDK fails the build instead of skipping the test
+	 */
+	private static final boolean REQUIRED = Boolean.getBoolean("virtualThreadLoad.required");
+	
+	@Test
+	void compareWithTomcatThreadPool() throws Exception {
+		String javaVersion = "virtual threads need Java 21+, running on Java " + Runtime.version().feature();
+		if (REQUIRED) {
+			assertTrue(VirtualThreads.isAvailable(), javaVersion + " (check -Djdk21.home)");
+		} else {
+			assumeTrue(VirtualThreads.isAvailable(), javaVersion);
+		}
+		
+		List<LoadTestUtil.StageResult> results = new ArrayList<>();
+		Map<Boolean, LoadTestUtil.StageResult> remoteResults = new HashMap<>();
+		HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		
+		for (boolean virtualThreads : new boolean[]{false, true}) {
+			String mode = virtualThreads ? "virtual threads" : "tomcat pool";
+			try (ConfigurableApplicationContext context = new SpringApplicationBuilder(GeotoolsPlaygroundApplication.class)
+				// the load test endpoints are served by this context only
+				.initializers(applicationContext -> ((GenericApplicationContext) applicationContext).registerBean(
+					"loadTestRoutes", RouterFunction.class,
+					() -> new LoadTestEndpoints(applicationContext.getBean(DataStoreAdmission.class)).routes()))
+				.properties(
+					"server.port=0",
+					"geotools.web.virtual-threads=" + virtualThreads,
+					"geotools.web.admission-timeout=2s",
+					// no spring.datasource.url in this playground, the PostGIS DataStores are created by GeoTools
+					"spring.autoconfigure.exclude=" + DataSourceAutoConfiguration.class.getName())
+				.run()) {
+				String baseUrl = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+				
+				// the request thread is printed by GET /admission
+				String admission = httpClient.send(HttpRequest.newBuilder(URI.create(baseUrl + "/admission")).build(),
+					HttpResponse.BodyHandlers.ofString()).body();
+				System.out.println(mode + " : " + admission);
+				assertEquals(virtualThreads, admission.contains("VirtualThread"));
+				
+				// warm up
+				run(httpClient, mode + " warm up", URI.create(baseUrl + "/load-test/remote"), CONCURRENCY);
+				
+				LoadTestUtil.StageResult remoteResult =
+					run(httpClient, mode + " /remote", URI.create(baseUrl + "/load-test/remote"), REQUESTS);
+				remoteResults.put(virtualThreads, remoteResult);
+				results.add(remoteResult);
+				results.add(run(httpClient, mode + " /datastore", URI.create(baseUrl + "/load-test/datastore"), REQUESTS / 4));
+				context.getBean(DataStoreAdmission.class).getStats().forEach(stats -> System.out.println(mode + " : " + stats));
+			}
+		}
+		
+		LoadTestUtil.printReport(results);
+		
+		// /remote has no connection limit, so only the 200 Tomcat threads make requests wait
+		Duration poolP99 = remoteResults.get(false).p99();
+		Duration virtualP99 = remoteResults.get(true).p99();
+		assertTrue(virtualP99.compareTo(poolP99) <= 0,
+			"/remote p99 with virtual threads (" + virtualP99.toMillis() + " ms) is worse than with the Tomcat pool ("
+				+ poolP99.toMillis() + " ms)");
+	}
+	
+	/**
+	 * send requests, CONCURRENCY at once
+	 */
+	private static LoadTestUtil.StageResult run(HttpClient httpClient, String name, URI uri, int requests) throws InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(uri).build();
+		Semaphore inFlight = new Semaphore(CONCURRENCY);
+		LongAdder failures = new LongAdder();
+		
+		LoadTestUtil.Stage stage = LoadTestUtil.start(name);
+		for (int i = 0; i < requests; i++) {
+			inFlight.acquire();
+			long start = System.nanoTime();
+			httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, e) -> {
+				if (e == null && response.statusCode() == 200) {
+					synchronized (stage) {
+						stage.record(System.nanoTime() - start, 1);
+					}
+				} else {
+					failures.increment();
+				}
+				inFlight.release();
+			});
+		}
+		inFlight.acquire(CONCURRENCY);
+		
+		LoadTestUtil.StageResult result = stage.finish();
+		System.out.println(name + " : " + result.operations() + " ok, " + failures.sum() + " failed (503 = admission timeout)");
+		assertTrue(result.operations() > 0);
+		return result;
+	}
+	
+	/**
+	 * endpoints used only by this test.<br>
+	 * Not a @RestController : this package is under the component scan of {@link GeotoolsPlaygroundApplication},
+	 * so every application context started from the test classpath would serve them.
+	 * The routes are registered by {@link #compareWithTomcatThreadPool()} only.
+	 */
+	static class LoadTestEndpoints {
+		
+		/**
+		 * stands for a JDBCDataStore with MAXCONN = 10
+		 */
+		private static final Object SIMULATED_DATASTORE = new Object();
+		
+		private final DataStoreAdmission admission;
+		
+		LoadTestEndpoints(DataStoreAdmission admission) {
+			this.admission = admission;
+			admission.register(SIMULATED_DATASTORE, "simulated-postgis", 10);
+		}
+		
+		/**
+		 * DataStoreBusyException still becomes 503 through its @ResponseStatus
+		 */
+		RouterFunction<ServerResponse> routes() {
+			return RouterFunctions.route()
+				.GET("/load-test/remote", request -> ServerResponse.ok().body(remote()))
+				.GET("/load-test/datastore", request -> ServerResponse.ok().body(dataStore()))
+				.build();
+		}
+		
+		String remote() throws InterruptedException {
+			Thread.sleep(50);
+			return "ok";
+		}
+		
+		String dataStore() throws IOException {
+			return admission.call(SIMULATED_DATASTORE, () -> {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				return "ok";
+			});
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package coding.toast.geotools.wfs;
+
+import coding.toast.geotools.utils.CachingWfsClient;
+import coding.toast.geotools.utils.DataStoreUtil;
+import coding.toast.geotools.utils.ShapeFileUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.wfs.GML;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test for {@link CachingWfsClient}.<br>
+ * Instead of a real GeoServer, a tiny local WFS (JDK HttpServer) serves the sample ShapeFile as GML.
+ * Every GetFeature page points to the DescribeFeatureType url of this server as its schemaLocation,
+ * and tells its numberOfFeatures like GeoServer does.
+ */
+public class CachingWfsClientTest {
+	
+	private static final String TYPE_NAME = "toast:sample";
+	private static final String NAMESPACE = "http://coding.toast/geotools";
+	
+	private static ShapefileDataStore shapeFileDataStore;
+	private static SimpleFeatureType wfsFeatureType;
+	private static HttpServer standInWfsServer;
+	private static String serviceUrl;
+	
+	// number of requests handled by the stand-in server, per request type
+	private static final Map<String, AtomicInteger> requestCounts = new HashMap<>();
+	private static final AtomicInteger notModifiedCount = new AtomicInteger();
+	// number of GetFeature requests handled by the stand-in server, per startIndex
+	private static final Map<Integer, AtomicInteger> getFeatureCounts = new ConcurrentHashMap<>();
+	
+	@BeforeAll
+	static void beforeAll() throws IOException {
+		shapeFileDataStore = ShapeFileUtil.getShapeFileDataStore(
+			"src/test/resources/sample/sample.shp",
+			"UTF-8");
+		
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.init(shapeFileDataStore.getSchema());
+		builder.setNamespaceURI(NAMESPACE);
+		wfsFeatureType = builder.buildFeatureType();
+		
+		standInWfsServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		standInWfsServer.createContext("/wfs", CachingWfsClientTest::handleWfsRequest);
+		standInWfsServer.start();
+		serviceUrl = "http://localhost:" + standInWfsServer.getAddress().getPort() + "/wfs";
+	}
+	
+	@AfterAll
+	static void afterAll() {
+		standInWfsServer.stop(0);
+		DataStoreUtil.closeDataStores(shapeFileDataStore);
+	}
+	
+	@Test
+	@DisplayName("Read all pages, then read them again from the disk cache")
+	void readFeaturesTwiceTest() throws IOException {
+		Path cacheDirectory = Files.createTempDirectory("wfs_cache");
+		int pageSize = 2;
+		
+		try (CachingWfsClient client = new CachingWfsClient(serviceUrl, cacheDirectory, Duration.ofMinutes(10))) {
+			int describeRequestsBefore = requestCount("DescribeFeatureType");
+			System.out.println("capabilities cached at : " + client.getCapabilities());
+			System.out.println("schema cached at : " + client.describeFeatureType(TYPE_NAME));
+			
+			int getFeatureRequestsBefore = requestCount("GetFeature");
+			int firstRead = countFeatures(client, pageSize);
+			int getFeatureRequests = requestCount("GetFeature") - getFeatureRequestsBefore;
+			
+			// second read must be served from the cache (TTL is 10 minutes)
+			int secondRead = countFeatures(client, pageSize);
+			
+			int featureCount = shapeFileDataStore.getFeatureSource().getCount(Query.ALL);
+			assertEquals(featureCount, firstRead);
+			assertEquals(firstRead, secondRead);
+			// every full page is followed by one more request, the short (or empty) last page ends the paging
+			assertEquals(featureCount / pageSize + 1, getFeatureRequests);
+			assertEquals(getFeatureRequestsBefore + getFeatureRequests, requestCount("GetFeature"));
+			// pages are decoded with the cached schema, their schemaLocation is never downloaded
+			assertEquals(describeRequestsBefore + 1, requestCount("DescribeFeatureType"));
+			System.out.println("features : " + firstRead + ", GetFeature requests : " + getFeatureRequests);
+		}
+	}
+	
+	@Test
+	@DisplayName("The next page is requested while the current page is still read")
+	void prefetchWhileReadingTest() throws IOException, InterruptedException {
+		Path cacheDirectory = Files.createTempDirectory("wfs_cache");
+		int pageSize = 2;
+		assertTrue(shapeFileDataStore.getFeatureSource().getCount(Query.ALL) > pageSize, "the sample needs 2 pages");
+		
+		int secondPageRequestsBefore = getFeatureCount(pageSize);
+		try (CachingWfsClient client = new CachingWfsClient(serviceUrl, cacheDirectory, Duration.ofMinutes(10));
+		     SimpleFeatureIterator features = client.features(TYPE_NAME, pageSize)) {
+			// the consumer stays in the first page
+			features.next();
+			
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (getFeatureCount(pageSize) == secondPageRequestsBefore && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(secondPageRequestsBefore + 1, getFeatureCount(pageSize),
+				"the page at startIndex=" + pageSize + " must be requested before the first page is consumed");
+		}
+	}
+	
+	@Test
+	@DisplayName("Expired cache entries are revalidated with ETag")
+	void revalidateWithEtagTest() throws IOException {
+		Path cacheDirectory = Files.createTempDirectory("wfs_cache");
+		
+		// TTL zero : every access asks the server, but the server answers 304 Not Modified
+		try (CachingWfsClient client = new CachingWfsClient(serviceUrl, cacheDirectory, Duration.ZERO)) {
+			client.getCapabilities();
+			int notModifiedBefore = notModifiedCount.get();
+			client.getCapabilities();
+			assertEquals(notModifiedBefore + 1, notModifiedCount.get());
+			
+			// remove everything from the cache
+			System.out.println("evicted : " + client.evict(Duration.ZERO));
+		}
+	}
+	
+	private static int countFeatures(CachingWfsClient client, int pageSize) throws IOException {
+		int count = 0;
+		try (SimpleFeatureIterator features = client.features(TYPE_NAME, pageSize)) {
+			while (features.hasNext()) {
+				SimpleFeature feature = features.next();
+				System.out.println(feature.getID() + " : " + feature.getDefaultGeometry());
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private static int getFeatureCount(int startIndex) {
+		return getFeatureCounts.getOrDefault(startIndex, new AtomicInteger()).get();
+	}
+	
+	private static int requestCount(String request) {
+		synchronized (requestCounts) {
+			return requestCounts.getOrDefault(request, new AtomicInteger()).get();
+		}
+	}
+	
+	/**
+	 * Minimal WFS 1.1.0 : GetCapabilities, DescribeFeatureType and GetFeature with maxFeatures/startIndex
+	 */
+	private static void handleWfsRequest(HttpExchange exchange) throws IOException {
+		Map<String, String> params = new HashMap<>();
+		String rawQuery = exchange.getRequestURI().getRawQuery();
+		for (String pair : (rawQuery == null ? "" : rawQuery).split("&")) {
+			String[] keyValue = pair.split("=", 2);
+			if (keyValue.length == 2) {
+				params.put(keyValue[0].toLowerCase(), URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
+			}
+		}
+		String request = params.getOrDefault("request", "GetCapabilities");
+		synchronized (requestCounts) {
+			requestCounts.computeIfAbsent(request, k -> new AtomicInteger()).incrementAndGet();
+		}
+		if (request.equals("GetFeature")) {
+			getFeatureCounts.computeIfAbsent(Integer.parseInt(params.getOrDefault("startindex", "0")), k -> new AtomicInteger())
+				.incrementAndGet();
+		}
+		
+		// the sample never changes, so the ETag only depends on the request
+		String etag = "\"" + Integer.toHexString(exchange.getRequestURI().toString().hashCode()) + "\"";
+		if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			notModifiedCount.incrementAndGet();
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		
+		exchange.getResponseHeaders().add("ETag", etag);
+		exchange.getResponseHeaders().add("Content-Type", "text/xml");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			GML encode = new GML(GML.Version.WFS1_1);
+			encode.setBaseURL(new URL(serviceUrl));
+			encode.setNamespace("toast", NAMESPACE);
+			
+			switch (request) {
+				case "DescribeFeatureType" -> encode.encode(out, wfsFeatureType);
+				case "GetFeature" -> {
+					Query query = new Query(shapeFileDataStore.getTypeNames()[0]);
+					query.setStartIndex(Integer.parseInt(params.getOrDefault("startindex", "0")));
+					query.setMaxFeatures(Integer.parseInt(params.getOrDefault("maxfeatures", "1000")));
+					
+					ListFeatureCollection page = new ListFeatureCollection(wfsFeatureType);
+					try (SimpleFeatureIterator features = shapeFileDataStore.getFeatureSource().getFeatures(query).features()) {
+						while (features.hasNext()) {
+							page.add(DataUtilities.reType(wfsFeatureType, features.next()));
+						}
+					}
+					// like GeoServer, the page tells how many features it has, so the client knows the last page
+					ByteArrayOutputStream gml = new ByteArrayOutputStream();
+					encode.encode(gml, page);
+					String response = gml.toString(StandardCharsets.UTF_8);
+					if (!response.contains("numberOfFeatures=")) {
+						response = response.replaceFirst("(<(\\w+:)?FeatureCollection)(\\s)",
+							"$1 numberOfFeatures=\"" + page.size() + "\"$3");
+					}
+					out.write(response.getBytes(StandardCharsets.UTF_8));
+				}
+				default -> out.write(("""
+					<wfs:WFS_Capabilities version="1.1.0" xmlns:wfs="http://www.opengis.net/wfs"
+					                      xmlns:toast="%s">
+					  <wfs:FeatureTypeList>
+					    <wfs:FeatureType>
+					      <wfs:Name>%s</wfs:Name>
+					      <wfs:DefaultSRS>urn:ogc:def:crs:EPSG::5186</wfs:DefaultSRS>
+					    </wfs:FeatureType>
+					  </wfs:FeatureTypeList>
+					</wfs:WFS_Capabilities>
+					""".formatted(NAMESPACE, TYPE_NAME)).getBytes(StandardCharsets.UTF_8));
+			}
+		} catch (Exception e) {
+			e.printStackTrace(System.err);
+		}
+	}
+}